@@ -0,0 +1,96 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.benchmark;
+
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.api.client.ConnectionHandler;
+import be.nabu.libs.http.client.DefaultHTTPClient;
+import be.nabu.libs.http.client.connections.PlainConnectionHandler;
+import be.nabu.libs.http.client.connections.PooledConnectionHandler;
+import be.nabu.libs.http.core.CustomCookieStore;
+
+/**
+ * Single threaded throughput and latency (the sample mode reports the percentiles) of the most common request shapes
+ * The "plain" connections open a new connection per request, the "pooled" ones reuse them (keep-alive)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientBenchmark {
+
+	@Param({ "pooled", "plain" })
+	public String connections;
+	
+	@Param({ "false", "true" })
+	public boolean secure;
+	
+	private StubServer server;
+	private DefaultHTTPClient client;
+	private byte [] largeContent = new byte[1024 * 1024];
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new StubServer();
+		ConnectionHandler connectionHandler = "pooled".equals(connections)
+			? new PooledConnectionHandler(server.getClientContext(), 4)
+			: new PlainConnectionHandler(server.getClientContext(), 5000, 5000);
+		client = new DefaultHTTPClient(connectionHandler, null, new CookieManager(new CustomCookieStore(), CookiePolicy.ACCEPT_ALL), false);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+	
+	@Benchmark
+	public HTTPResponse smallGet() throws Exception {
+		return client.execute(server.get("/small", secure), null, secure, false);
+	}
+	
+	@Benchmark
+	public HTTPResponse largePost() throws Exception {
+		return client.execute(server.post("/upload", secure, largeContent), null, secure, false);
+	}
+	
+	@Benchmark
+	public HTTPResponse chunkedGet() throws Exception {
+		return client.execute(server.get("/chunked", secure), null, secure, false);
+	}
+}
@@ -0,0 +1,213 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.benchmark;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+
+/**
+ * A loopback http and https server with a few fixed endpoints to benchmark against:
+ * - /small: a small response with a content length
+ * - /upload: reads and discards the request body
+ * - /chunked: a larger response that is sent chunked
+ */
+public class StubServer implements Closeable {
+
+	private static final byte [] SMALL = new byte[128];
+	private static final byte [] CHUNK = new byte[8192];
+	private static final int CHUNKS = 32;
+	private static final char [] PASSWORD = "benchmark".toCharArray();
+	
+	private HttpServer server;
+	private HttpsServer secureServer;
+	private ExecutorService executor;
+	private SSLContext clientContext;
+	
+	static {
+		Arrays.fill(SMALL, (byte) 'a');
+		Arrays.fill(CHUNK, (byte) 'b');
+	}
+	
+	public StubServer() throws IOException, GeneralSecurityException, InterruptedException {
+		executor = Executors.newCachedThreadPool();
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+		server = HttpServer.create(address, 1024);
+		secureServer = HttpsServer.create(address, 1024);
+		secureServer.setHttpsConfigurator(new HttpsConfigurator(newServerContext()));
+		for (HttpServer current : Arrays.asList(server, secureServer)) {
+			current.createContext("/small", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					drain(exchange);
+					exchange.sendResponseHeaders(200, SMALL.length);
+					OutputStream output = exchange.getResponseBody();
+					output.write(SMALL);
+					output.close();
+				}
+			});
+			current.createContext("/upload", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					drain(exchange);
+					exchange.sendResponseHeaders(204, -1);
+					exchange.close();
+				}
+			});
+			current.createContext("/chunked", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					drain(exchange);
+					// a length of 0 means chunked
+					exchange.sendResponseHeaders(200, 0);
+					OutputStream output = exchange.getResponseBody();
+					for (int i = 0; i < CHUNKS; i++) {
+						output.write(CHUNK);
+						output.flush();
+					}
+					output.close();
+				}
+			});
+			current.setExecutor(executor);
+			current.start();
+		}
+		clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, new TrustManager[] { new TrustAllManager() }, null);
+	}
+	
+	public HTTPRequest get(String path, boolean secure) {
+		return new DefaultHTTPRequest("GET", path, new PlainMimeEmptyPart(null,
+			new MimeHeader("Host", getHost(secure)),
+			new MimeHeader("Content-Length", "0")
+		));
+	}
+	
+	public HTTPRequest post(String path, boolean secure, byte [] content) {
+		return new DefaultHTTPRequest("POST", path, new PlainMimeContentPart(null, IOUtils.wrap(content, true),
+			new MimeHeader("Host", getHost(secure)),
+			new MimeHeader("Content-Length", Integer.toString(content.length)),
+			new MimeHeader("Content-Type", "application/octet-stream")
+		));
+	}
+	
+	public String getHost(boolean secure) {
+		return "localhost:" + getPort(secure);
+	}
+	
+	public int getPort(boolean secure) {
+		return (secure ? secureServer : server).getAddress().getPort();
+	}
+	
+	/**
+	 * The certificate of the server is self-signed so the client trusts everything
+	 */
+	public SSLContext getClientContext() {
+		return clientContext;
+	}
+	
+	@Override
+	public void close() {
+		server.stop(0);
+		secureServer.stop(0);
+		executor.shutdownNow();
+	}
+	
+	private static void drain(HttpExchange exchange) throws IOException {
+		InputStream input = exchange.getRequestBody();
+		byte [] buffer = new byte[8192];
+		while (input.read(buffer) >= 0) {
+			// discard
+		}
+		input.close();
+	}
+	
+	/**
+	 * Uses the keytool of the running JVM to generate a self-signed certificate for the https server
+	 */
+	private static SSLContext newServerContext() throws IOException, GeneralSecurityException, InterruptedException {
+		File keystore = File.createTempFile("benchmark", ".p12");
+		keystore.delete();
+		keystore.deleteOnExit();
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "stub", "-keyalg", "RSA", "-keysize", "2048",
+			"-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12", "-keystore", keystore.getAbsolutePath(),
+			"-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+			.redirectErrorStream(true)
+			.start();
+		if (process.waitFor() != 0) {
+			throw new IOException("Could not generate a certificate with " + keytool);
+		}
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		InputStream input = new FileInputStream(keystore);
+		try {
+			store.load(input, PASSWORD);
+		}
+		finally {
+			input.close();
+		}
+		KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		factory.init(store, PASSWORD);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(factory.getKeyManagers(), null, null);
+		return context;
+	}
+	
+	private static class TrustAllManager implements X509TrustManager {
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			// trusted
+		}
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			// trusted
+		}
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+}
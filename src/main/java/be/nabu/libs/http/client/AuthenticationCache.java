@@ -0,0 +1,199 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client;
+
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.api.client.ClientAuthenticationHandler;
+import be.nabu.libs.http.core.HTTPUtils;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+
+/**
+ * Remembers which challenge a server accepted credentials for so they can be sent preemptively on subsequent requests
+ * The protection space is the host, port and realm but because the realm is only known after a challenge, the last accepted realm for a host and port is used
+ * Connection based schemes (e.g. NTLM) are not cached as their handshake is bound to a single connection
+ */
+public class AuthenticationCache {
+
+	private static final String [] CONNECTION_BASED_SCHEMES = new String [] { "ntlm", "negotiate", "kerberos" };
+	
+	private int maxEntries = 1024;
+	
+	private Map<ProtectionSpace, Challenge> challenges = new LinkedHashMap<ProtectionSpace, Challenge>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ProtectionSpace, Challenge> eldest) {
+			return size() > maxEntries;
+		}
+	};
+	
+	/**
+	 * Calculates the preemptive authorization header for the server, or null if nothing is known for it
+	 */
+	public Header authorizeServer(boolean secure, String host, int port, Principal principal, ClientAuthenticationHandler handler) {
+		if (handler == null) {
+			return null;
+		}
+		Challenge challenge;
+		synchronized(challenges) {
+			challenge = challenges.get(new ProtectionSpace(getOrigin(secure, host, port), principal));
+		}
+		if (challenge == null) {
+			return null;
+		}
+		// the credentials are always calculated from the current principal, if they are wrong the server responds with a fresh challenge
+		String response = handler.authenticate(principal, challenge.value);
+		return response == null ? null : new MimeHeader(HTTPUtils.SERVER_AUTHENTICATE_RESPONSE, response);
+	}
+
+	/**
+	 * Remembers the challenge in the response that the given authorization header answered, this should only be called once the authorization was accepted
+	 */
+	public void acceptedServer(boolean secure, String host, int port, Principal principal, HTTPResponse challenge, Header authorization) {
+		if (challenge == null) {
+			return;
+		}
+		AuthenticationChallenge answered = getAnswered(AuthenticationChallenge.parse(MimeUtils.getHeaders("WWW-Authenticate", challenge.getContent().getHeaders())), authorization);
+		if (answered != null) {
+			synchronized(challenges) {
+				challenges.put(new ProtectionSpace(getOrigin(secure, host, port), principal), new Challenge(answered.toString(), answered.getParameter("realm")));
+			}
+		}
+	}
+	
+	/**
+	 * The challenge that the authorization answered, or null if it is not found or uses a connection based scheme (the answer is then only valid on that connection)
+	 */
+	static AuthenticationChallenge getAnswered(List<AuthenticationChallenge> candidates, Header authorization) {
+		if (authorization == null || authorization.getValue() == null) {
+			return null;
+		}
+		List<AuthenticationChallenge> answers = AuthenticationChallenge.parse(authorization.getValue());
+		if (answers.isEmpty() || isConnectionBased(answers.get(0).getScheme())) {
+			return null;
+		}
+		AuthenticationChallenge answer = answers.get(0);
+		// multiple challenges can be sent for the same scheme (e.g. digest with different algorithms), the realm and algorithm tell them apart
+		for (AuthenticationChallenge candidate : candidates) {
+			if (candidate.isScheme(answer.getScheme()) && matches(candidate, answer, "realm") && matches(candidate, answer, "algorithm")) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	public void invalidateServer(boolean secure, String host, int port, Principal principal) {
+		synchronized(challenges) {
+			challenges.remove(new ProtectionSpace(getOrigin(secure, host, port), principal));
+		}
+	}
+	
+	public void clear() {
+		synchronized(challenges) {
+			challenges.clear();
+		}
+	}
+	
+	public int size() {
+		synchronized(challenges) {
+			return challenges.size();
+		}
+	}
+	
+	/**
+	 * The realm that was last accepted for the server, or null if nothing is cached
+	 */
+	public String getRealm(boolean secure, String host, int port, Principal principal) {
+		Challenge challenge;
+		synchronized(challenges) {
+			challenge = challenges.get(new ProtectionSpace(getOrigin(secure, host, port), principal));
+		}
+		return challenge == null ? null : challenge.realm;
+	}
+	
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+	public AuthenticationCache setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		return this;
+	}
+
+	static boolean isConnectionBased(String scheme) {
+		for (String connectionBased : CONNECTION_BASED_SCHEMES) {
+			if (connectionBased.equalsIgnoreCase(scheme)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	static String getScheme(String value) {
+		value = value.trim();
+		int index = value.indexOf(' ');
+		return value.isEmpty() ? null : (index < 0 ? value : value.substring(0, index));
+	}
+	
+	private static boolean matches(AuthenticationChallenge challenge, AuthenticationChallenge answer, String parameter) {
+		String expected = challenge.getParameter(parameter), actual = answer.getParameter(parameter);
+		return expected == null || actual == null || expected.equalsIgnoreCase(actual);
+	}
+	
+	private static String getOrigin(boolean secure, String host, int port) {
+		return (secure ? "https://" : "http://") + host.toLowerCase() + ":" + port;
+	}
+	
+	private static class Challenge {
+		private String value, realm;
+		
+		public Challenge(String value, String realm) {
+			this.value = value;
+			this.realm = realm;
+		}
+	}
+	
+	private static class ProtectionSpace {
+		private String origin;
+		private String principal;
+		
+		public ProtectionSpace(String origin, Principal principal) {
+			this.origin = origin;
+			this.principal = principal == null ? null : principal.getName();
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof ProtectionSpace)) {
+				return false;
+			}
+			ProtectionSpace other = (ProtectionSpace) object;
+			return origin.equals(other.origin) && (principal == null ? other.principal == null : principal.equals(other.principal));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * origin.hashCode() + (principal == null ? 0 : principal.hashCode());
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeUtils;
+
+/**
+ * A single challenge from a WWW-Authenticate or Proxy-Authenticate header (RFC 9110 section 11.6.1)
+ * A header can contain multiple challenges, the parameter names are lower cased and quoted values are unescaped
+ */
+public class AuthenticationChallenge {
+
+	private String scheme, token, value;
+	private Map<String, String> parameters = new LinkedHashMap<String, String>();
+	
+	private AuthenticationChallenge(String scheme) {
+		this.scheme = scheme;
+	}
+	
+	public String getScheme() {
+		return scheme;
+	}
+	
+	/**
+	 * The token68 of schemes that do not use parameters (e.g. the NTLM type 2 message), null if there is none
+	 */
+	public String getToken() {
+		return token;
+	}
+	
+	public String getParameter(String name) {
+		return parameters.get(name.toLowerCase(Locale.ENGLISH));
+	}
+	
+	public Map<String, String> getParameters() {
+		return Collections.unmodifiableMap(parameters);
+	}
+
+	public boolean isScheme(String scheme) {
+		return this.scheme.equalsIgnoreCase(scheme);
+	}
+	
+	/**
+	 * The challenge as it appeared in the header
+	 */
+	@Override
+	public String toString() {
+		return value;
+	}
+	
+	public static List<AuthenticationChallenge> parse(Header...headers) {
+		List<AuthenticationChallenge> challenges = new ArrayList<AuthenticationChallenge>();
+		if (headers != null) {
+			for (Header header : headers) {
+				String value = MimeUtils.getFullHeaderValue(header);
+				if (value != null) {
+					challenges.addAll(parse(value));
+				}
+			}
+		}
+		return challenges;
+	}
+	
+	public static List<AuthenticationChallenge> parse(String value) {
+		List<AuthenticationChallenge> challenges = new ArrayList<AuthenticationChallenge>();
+		AuthenticationChallenge current = null;
+		int start = -1, end = -1;
+		int index = 0;
+		while (index <= value.length()) {
+			// find the end of the comma separated item, commas in quoted strings do not count
+			int itemStart = index;
+			boolean quoted = false;
+			while (index < value.length() && (quoted || value.charAt(index) != ',')) {
+				if (value.charAt(index) == '"') {
+					quoted = !quoted;
+				}
+				else if (quoted && value.charAt(index) == '\\') {
+					index++;
+				}
+				index++;
+			}
+			int itemEnd = Math.min(index, value.length());
+			index++;
+			String item = value.substring(itemStart, itemEnd).trim();
+			if (item.isEmpty()) {
+				continue;
+			}
+			int itemOffset = value.indexOf(item, itemStart);
+			int space = indexOfWhitespace(item);
+			int equals = item.indexOf('=');
+			// a token followed by whitespace starts a new challenge, unless the whitespace is around the "=" of a parameter
+			if ((space >= 0 && (equals < 0 || space < equals) && !item.substring(space).trim().startsWith("=")) || (space < 0 && equals < 0)) {
+				if (current != null) {
+					current.value = value.substring(start, end);
+					challenges.add(current);
+				}
+				current = new AuthenticationChallenge(space < 0 ? item : item.substring(0, space));
+				start = itemOffset;
+				if (space >= 0) {
+					String rest = item.substring(space).trim();
+					if (isParameter(rest)) {
+						current.addParameter(rest);
+					}
+					else {
+						current.token = rest;
+					}
+				}
+			}
+			// a parameter without a challenge is ignored
+			else if (current != null) {
+				current.addParameter(item);
+			}
+			end = itemOffset + item.length();
+		}
+		if (current != null) {
+			current.value = value.substring(start, end);
+			challenges.add(current);
+		}
+		return challenges;
+	}
+	
+	private void addParameter(String parameter) {
+		int index = parameter.indexOf('=');
+		String name = parameter.substring(0, index).trim().toLowerCase(Locale.ENGLISH);
+		String value = parameter.substring(index + 1).trim();
+		if (value.startsWith("\"")) {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 1; i < value.length() && value.charAt(i) != '"'; i++) {
+				if (value.charAt(i) == '\\' && i + 1 < value.length()) {
+					i++;
+				}
+				builder.append(value.charAt(i));
+			}
+			value = builder.toString();
+		}
+		parameters.put(name, value);
+	}
+	
+	/**
+	 * A token68 can end in "=" padding, a parameter has a name and a value
+	 */
+	private static boolean isParameter(String value) {
+		int index = value.indexOf('=');
+		if (index <= 0) {
+			return false;
+		}
+		String rest = value.substring(index + 1).trim();
+		for (int i = 0; i < rest.length(); i++) {
+			if (rest.charAt(i) != '=') {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static int indexOfWhitespace(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (Character.isWhitespace(value.charAt(i))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -37,6 +37,11 @@ public class BasicAuthentication implements ClientAuthenticationHandler {
 
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	
+	/**
+	 * The last calculated header, the same principal is usually sent with every request
+	 */
+	private volatile Credentials last;
+	
 	@Override
 	public String authenticate(Principal principal, String challenge) {
 		if (challenge == null || !challenge.trim().toLowerCase().startsWith("basic")) {
@@ -52,15 +57,22 @@ public class BasicAuthentication implements ClientAuthenticationHandler {
 			logger.debug("Basic authentication is requested but the principal that is given is not of the type 'BasicPrincipal'");
 			return null;
 		}
+		String password = ((BasicPrincipal) principal).getPassword();
+		Credentials last = this.last;
+		// the header only depends on the name and password so it can be reused for any principal that has the same
+		if (last != null && equals(last.name, principal.getName()) && equals(last.password, password)) {
+			return last.header;
+		}
 		try {
-			String password = ((BasicPrincipal) principal).getPassword();
 			Base64Encoder transcoder = new Base64Encoder();
 			transcoder.setBytesPerLine(0);
 			byte [] base64 = IOUtils.toBytes(TranscoderUtils.transcodeBytes(
 				IOUtils.wrap((principal.getName() + ":" + (password == null ? "" : password)).getBytes("UTF-8"), true), 
 				transcoder)
 			);
-			return "Basic " + new String(base64, "ASCII");
+			String header = "Basic " + new String(base64, "ASCII");
+			this.last = new Credentials(principal.getName(), password, header);
+			return header;
 		}
 		catch (UnsupportedEncodingException e) {
 			throw new RuntimeException(e);
@@ -71,4 +83,17 @@ public class BasicAuthentication implements ClientAuthenticationHandler {
 		return null;
 	}
 
+	private static boolean equals(String first, String second) {
+		return first == null ? second == null : first.equals(second);
+	}
+	
+	private static class Credentials {
+		private String name, password, header;
+		
+		public Credentials(String name, String password, String header) {
+			this.name = name;
+			this.password = password;
+			this.header = header;
+		}
+	}
 }
@@ -0,0 +1,188 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client;
+
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cookie store that can be shared by many threads without a global lock, the cookies are indexed by domain so a lookup only checks the cookies of the host and its parent domains
+ * Expired cookies are evicted when they are encountered, evictExpired() can be used to clean up the entire store
+ * Use it with a CookieManager, the executor skips all cookie handling for hosts that have no cookies in this store
+ */
+public class ConcurrentCookieStore implements CookieStore {
+
+	// domain > (name + path) > cookie
+	private Map<String, Map<String, HttpCookie>> cookies = new ConcurrentHashMap<String, Map<String, HttpCookie>>();
+	
+	@Override
+	public void add(URI uri, HttpCookie cookie) {
+		String domain = getBucket(cookie.getDomain() == null ? uri.getHost() : cookie.getDomain());
+		if (domain == null) {
+			return;
+		}
+		String key = getKey(cookie);
+		if (cookie.hasExpired()) {
+			Map<String, HttpCookie> bucket = cookies.get(domain);
+			if (bucket != null) {
+				bucket.remove(key);
+			}
+			return;
+		}
+		Map<String, HttpCookie> bucket = cookies.get(domain);
+		if (bucket == null) {
+			Map<String, HttpCookie> newBucket = new ConcurrentHashMap<String, HttpCookie>();
+			bucket = cookies.putIfAbsent(domain, newBucket);
+			if (bucket == null) {
+				bucket = newBucket;
+			}
+		}
+		bucket.put(key, cookie);
+	}
+
+	/**
+	 * Returns the cookies of the host and its parent domains, the cookie manager does the path and security checks
+	 */
+	@Override
+	public List<HttpCookie> get(URI uri) {
+		List<HttpCookie> result = new ArrayList<HttpCookie>();
+		String host = uri.getHost();
+		if (host == null) {
+			return result;
+		}
+		host = host.toLowerCase();
+		for (String domain = host; domain != null; domain = getParent(domain)) {
+			Map<String, HttpCookie> bucket = cookies.get(domain);
+			if (bucket != null) {
+				Iterator<HttpCookie> iterator = bucket.values().iterator();
+				while (iterator.hasNext()) {
+					HttpCookie cookie = iterator.next();
+					if (cookie.hasExpired()) {
+						iterator.remove();
+					}
+					else if (cookie.getDomain() == null || domain.equals(host) || HttpCookie.domainMatches(cookie.getDomain(), host)) {
+						result.add(cookie);
+					}
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Whether there might be cookies for the given host, this does not check expiry or paths so it is cheap
+	 */
+	public boolean hasCookies(String host) {
+		if (host == null) {
+			return false;
+		}
+		for (String domain = host.toLowerCase(); domain != null; domain = getParent(domain)) {
+			Map<String, HttpCookie> bucket = cookies.get(domain);
+			if (bucket != null && !bucket.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public List<HttpCookie> getCookies() {
+		List<HttpCookie> result = new ArrayList<HttpCookie>();
+		for (Map<String, HttpCookie> bucket : cookies.values()) {
+			for (HttpCookie cookie : bucket.values()) {
+				if (!cookie.hasExpired()) {
+					result.add(cookie);
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public List<URI> getURIs() {
+		List<URI> result = new ArrayList<URI>();
+		for (Map.Entry<String, Map<String, HttpCookie>> entry : cookies.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				try {
+					result.add(new URI("http", entry.getKey(), "/", null));
+				}
+				catch (URISyntaxException e) {
+					// skip
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean remove(URI uri, HttpCookie cookie) {
+		String domain = getBucket(cookie.getDomain() == null ? (uri == null ? null : uri.getHost()) : cookie.getDomain());
+		Map<String, HttpCookie> bucket = domain == null ? null : cookies.get(domain);
+		return bucket != null && bucket.remove(getKey(cookie)) != null;
+	}
+
+	@Override
+	public boolean removeAll() {
+		boolean empty = cookies.isEmpty();
+		cookies.clear();
+		return !empty;
+	}
+	
+	public void evictExpired() {
+		Iterator<Map<String, HttpCookie>> buckets = cookies.values().iterator();
+		while (buckets.hasNext()) {
+			Iterator<HttpCookie> iterator = buckets.next().values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().hasExpired()) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+	
+	private static String getKey(HttpCookie cookie) {
+		return cookie.getName() + ";" + (cookie.getPath() == null ? "/" : cookie.getPath());
+	}
+	
+	private static String getBucket(String domain) {
+		if (domain == null) {
+			return null;
+		}
+		domain = domain.toLowerCase();
+		if (domain.startsWith(".")) {
+			domain = domain.substring(1);
+		}
+		// the cookie manager adds ".local" to hosts without a dot (e.g. "localhost")
+		if (domain.endsWith(".local") && domain.indexOf('.') == domain.length() - ".local".length()) {
+			domain = domain.substring(0, domain.length() - ".local".length());
+		}
+		return domain;
+	}
+	
+	private static String getParent(String domain) {
+		int index = domain.indexOf('.');
+		return index < 0 || index == domain.length() - 1 ? null : domain.substring(index + 1);
+	}
+}
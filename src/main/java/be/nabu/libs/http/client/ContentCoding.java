@@ -0,0 +1,291 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.api.MultiPart;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+
+/**
+ * Advertises gzip and deflate to the server and inflates the response content as it is read, the Content-Encoding and Content-Length headers are removed from the decoded response
+ * Request content can optionally be gzipped if it is larger than a threshold, this is only done if the length is known up front and within the maximum compression size
+ * The (native) zlib state is pooled, a decoded response is not reopenable
+ */
+public class ContentCoding {
+
+	private boolean decompressResponses = true;
+	// request compression is disabled by default, not all servers support it
+	private long compressionThreshold = -1;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private int maxPoolSize = 32;
+	private long maxCompressionSize = 4 * 1024 * 1024;
+	
+	private Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private AtomicInteger pooledInflaters = new AtomicInteger(), pooledDeflaters = new AtomicInteger();
+	
+	/**
+	 * The request belongs to the caller (it may be reused or sent again), so it is never modified: if anything has to change, a copy is returned
+	 */
+	public HTTPRequest encode(HTTPRequest request) throws IOException {
+		ModifiablePart content = request.getContent();
+		if (content == null) {
+			return request;
+		}
+		// a multipart can not be copied cheaply, it is sent without advertising the codings
+		Header acceptEncoding = decompressResponses && !(content instanceof MultiPart) && MimeUtils.getHeader("Accept-Encoding", content.getHeaders()) == null
+			? new MimeHeader("Accept-Encoding", "gzip, deflate")
+			: null;
+		HTTPRequest compressed = compress(request, acceptEncoding);
+		if (compressed != null) {
+			return compressed;
+		}
+		else if (acceptEncoding != null) {
+			return copy(request, acceptEncoding);
+		}
+		return request;
+	}
+	
+	private HTTPRequest compress(HTTPRequest request, Header acceptEncoding) throws IOException {
+		ModifiablePart content = request.getContent();
+		if (compressionThreshold < 0 || !(content instanceof ContentPart) || request instanceof FileHTTPRequest || MimeUtils.getHeader("Content-Encoding", content.getHeaders()) != null) {
+			return null;
+		}
+		// the compressed content is kept in memory, larger content is sent as is
+		Long contentLength = MimeUtils.getContentLength(content.getHeaders());
+		if (contentLength == null || contentLength < compressionThreshold || (maxCompressionSize >= 0 && contentLength > maxCompressionSize)) {
+			return null;
+		}
+		ReadableContainer<ByteBuffer> readable = ((ContentPart) content).getReadable();
+		if (readable == null) {
+			return null;
+		}
+		byte [] compressed;
+		try {
+			compressed = gzip(IOUtils.toInputStream(readable));
+		}
+		finally {
+			readable.close();
+		}
+		List<Header> headers = withoutCoding(content.getHeaders());
+		headers.add(new MimeHeader("Content-Encoding", "gzip"));
+		headers.add(new MimeHeader("Content-Length", Integer.toString(compressed.length)));
+		if (acceptEncoding != null) {
+			headers.add(acceptEncoding);
+		}
+		return new DefaultHTTPRequest(request.getMethod(), request.getTarget(), new PlainMimeContentPart(null, IOUtils.wrap(compressed, true), headers.toArray(new Header[headers.size()])), request.getVersion());
+	}
+	
+	/**
+	 * A copy of the request with an additional header, the content itself is shared
+	 */
+	private static HTTPRequest copy(HTTPRequest request, Header header) throws IOException {
+		ModifiablePart content = request.getContent();
+		List<Header> headers = new ArrayList<Header>();
+		for (Header existing : content.getHeaders()) {
+			// a file request calculates its own length
+			if (!(request instanceof FileHTTPRequest) || !existing.getName().equalsIgnoreCase("Content-Length")) {
+				headers.add(existing);
+			}
+		}
+		headers.add(header);
+		Header [] array = headers.toArray(new Header[headers.size()]);
+		if (request instanceof FileHTTPRequest) {
+			return new FileHTTPRequest(request.getMethod(), request.getTarget(), ((FileHTTPRequest) request).getFile(), array);
+		}
+		ReadableContainer<ByteBuffer> readable = content instanceof ContentPart ? ((ContentPart) content).getReadable() : null;
+		ModifiablePart part = readable == null ? new PlainMimeEmptyPart(null, array) : new PlainMimeContentPart(null, readable, array);
+		return new DefaultHTTPRequest(request.getMethod(), request.getTarget(), part, request.getVersion());
+	}
+	
+	public HTTPResponse decode(HTTPResponse response) throws IOException {
+		if (!decompressResponses || !(response.getContent() instanceof ContentPart)) {
+			return response;
+		}
+		Header encoding = MimeUtils.getHeader("Content-Encoding", response.getContent().getHeaders());
+		if (encoding == null) {
+			return response;
+		}
+		String coding = encoding.getValue().trim().toLowerCase();
+		boolean gzip = coding.equals("gzip") || coding.equals("x-gzip");
+		if (!gzip && !coding.equals("deflate")) {
+			return response;
+		}
+		ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+		if (readable == null) {
+			return response;
+		}
+		List<Header> headers = withoutCoding(response.getContent().getHeaders());
+		InflatingInputStream inflating = new InflatingInputStream(IOUtils.toInputStream(readable), gzip, this);
+		return new DefaultHTTPResponse(response.getCode(), response.getMessage(), new PlainMimeContentPart(null, IOUtils.wrap(inflating), headers.toArray(new Header[headers.size()])));
+	}
+	
+	private byte [] gzip(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		// the minimal gzip header: no flags, no modification time, unknown operating system
+		output.write(new byte [] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff });
+		Deflater deflater = acquireDeflater();
+		CRC32 crc = new CRC32();
+		long size = 0;
+		try {
+			DeflaterOutputStream deflating = new DeflaterOutputStream(output, deflater, 8192);
+			byte [] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				deflating.write(buffer, 0, read);
+				crc.update(buffer, 0, read);
+				size += read;
+			}
+			deflating.finish();
+		}
+		finally {
+			releaseDeflater(deflater);
+		}
+		writeIntLittleEndian(output, crc.getValue());
+		writeIntLittleEndian(output, size);
+		return output.toByteArray();
+	}
+	
+	private static void writeIntLittleEndian(ByteArrayOutputStream output, long value) {
+		for (int i = 0; i < 4; i++) {
+			output.write((int) (value >> (i * 8)) & 0xff);
+		}
+	}
+	
+	private static List<Header> withoutCoding(Header...headers) {
+		List<Header> result = new ArrayList<Header>();
+		for (Header header : headers) {
+			if (!header.getName().equalsIgnoreCase("Content-Encoding") && !header.getName().equalsIgnoreCase("Content-Length")) {
+				result.add(header);
+			}
+		}
+		return result;
+	}
+	
+	Inflater acquireInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			return new Inflater(true);
+		}
+		pooledInflaters.decrementAndGet();
+		return inflater;
+	}
+	
+	void releaseInflater(Inflater inflater) {
+		inflater.reset();
+		if (pooledInflaters.incrementAndGet() <= maxPoolSize) {
+			inflaters.offer(inflater);
+		}
+		else {
+			pooledInflaters.decrementAndGet();
+			inflater.end();
+		}
+	}
+	
+	private Deflater acquireDeflater() {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			return new Deflater(compressionLevel, true);
+		}
+		pooledDeflaters.decrementAndGet();
+		deflater.setLevel(compressionLevel);
+		return deflater;
+	}
+	
+	private void releaseDeflater(Deflater deflater) {
+		deflater.reset();
+		if (pooledDeflaters.incrementAndGet() <= maxPoolSize) {
+			deflaters.offer(deflater);
+		}
+		else {
+			pooledDeflaters.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	public boolean isDecompressResponses() {
+		return decompressResponses;
+	}
+	public ContentCoding setDecompressResponses(boolean decompressResponses) {
+		this.decompressResponses = decompressResponses;
+		return this;
+	}
+
+	public long getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	/**
+	 * Request content of at least this many bytes is gzipped, a negative value disables request compression
+	 */
+	public ContentCoding setCompressionThreshold(long compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+		return this;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	public ContentCoding setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+		return this;
+	}
+
+	public long getMaxCompressionSize() {
+		return maxCompressionSize;
+	}
+	/**
+	 * Request content is compressed in memory, larger content is sent uncompressed, a negative value means no limit
+	 */
+	public ContentCoding setMaxCompressionSize(long maxCompressionSize) {
+		this.maxCompressionSize = maxCompressionSize;
+		return this;
+	}
+
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+	public ContentCoding setMaxPoolSize(int maxPoolSize) {
+		this.maxPoolSize = maxPoolSize;
+		return this;
+	}
+}
@@ -18,6 +18,9 @@
 package be.nabu.libs.http.client;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
 import java.net.CookieHandler;
 import java.net.Socket;
 import java.net.URI;
@@ -25,17 +28,41 @@ import java.net.URISyntaxException;
 import java.security.Principal;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import be.nabu.libs.http.api.HTTPRequest;
 import be.nabu.libs.http.api.HTTPResponse;
 import be.nabu.libs.http.api.client.ClientAuthenticationHandler;
 import be.nabu.libs.http.api.client.ConnectionHandler;
 import be.nabu.libs.http.api.client.TimedHTTPClient;
+import be.nabu.libs.http.client.cache.ResponseCache;
+import be.nabu.libs.http.client.connections.PooledConnectionHandler;
 import be.nabu.libs.http.core.DefaultDynamicResourceProvider;
 import be.nabu.libs.http.core.HTTPUtils;
 import be.nabu.libs.resources.api.DynamicResourceProvider;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
 import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.impl.FormatException;
 import be.nabu.utils.mime.impl.MimeHeader;
@@ -55,10 +82,74 @@ public class DefaultHTTPClient implements TimedHTTPClient {
 	
 	private boolean retryOnFailure = false;
 	
+	/**
+	 * The maximum amount of requests that are sent back to back on a single connection when pipelining, pipelining is disabled if this is less than 2
+	 */
+	private int pipelineDepth = 0;
+	
+	// only requests with these methods can be pipelined, they are safe to resend if the connection breaks
+	private static List<String> pipelinableMethods = Arrays.asList(new String [] { "GET", "HEAD", "OPTIONS" });
+	
+	private static final int DEFAULT_MAX_ASYNC_THREADS = 64;
+	
+	// the asynchronous request that is running on the current thread (if any), so its sockets can be closed when it is cancelled
+	private static final ThreadLocal<AsyncExecution> currentExecution = new ThreadLocal<AsyncExecution>();
+	
+	private static ScheduledExecutorService timeouts;
+	
+	/**
+	 * The executor that runs the asynchronous requests, by default virtual threads are used if the JVM supports them
+	 * Otherwise a pool of at most maxAsyncThreads platform threads is used, the other requests wait in its queue
+	 * The default executor is shut down when the client is closed, an executor that is set explicitly is not
+	 */
+	private Executor asyncExecutor;
+	private ExecutorService defaultAsyncExecutor;
+	private int maxAsyncThreads;
+	
+	/**
+	 * Set this header to "true" (or "false") on a request to (not) stream the response, it is not sent to the server
+	 */
+	public static final String STREAM_RESPONSE_HEADER = "X-Nabu-Stream-Response";
+	
+	/**
+	 * Whether the response content is streamed from the connection by default instead of being copied to memory or disk before the response is returned
+	 * A streamed response keeps the connection in use until its content is read completely or closed, it must always be closed
+	 */
+	private boolean streamResponses;
+	
+	/**
+	 * If set, GET and HEAD responses are cached according to their cache headers
+	 */
+	private ResponseCache responseCache;
+	
+	/**
+	 * If set, identical concurrent GET and HEAD requests share a single execution
+	 */
+	private RequestCoalescer requestCoalescer;
+	
+	/**
+	 * Remembers the challenges that were answered successfully so credentials can be sent preemptively, set to null to always wait for a challenge
+	 */
+	private AuthenticationCache authenticationCache = new AuthenticationCache();
+	
+	private Consumer<Socket> closeListener;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
 	public DefaultHTTPClient(ConnectionHandler connectionHandler, ClientAuthenticationHandler authenticationHandler, CookieHandler cookieHandler, boolean useContinue) {
 		this.connectionHandler = connectionHandler;
 		this.executor = new HTTPExecutor(new DefaultDynamicResourceProvider(), cookieHandler, useContinue);
 		this.authenticationHandler = authenticationHandler;
+		// a pooled socket can be closed without us knowing (e.g. evicted when idle), its buffered streams must not outlive it
+		if (connectionHandler instanceof PooledConnectionHandler) {
+			closeListener = new Consumer<Socket>() {
+				@Override
+				public void accept(Socket socket) {
+					executor.forget(socket);
+				}
+			};
+			((PooledConnectionHandler) connectionHandler).addCloseListener(closeListener);
+		}
 	}
 	
 	@Override
@@ -66,8 +157,132 @@ public class DefaultHTTPClient implements TimedHTTPClient {
 		return execute(request, principal, secure, followRedirects, null, null);
 	}
 	
+	public CompletableFuture<HTTPResponse> executeAsync(HTTPRequest request, Principal principal, boolean secure, boolean followRedirects) {
+		return executeAsync(request, principal, secure, followRedirects, null, null);
+	}
+	
+	/**
+	 * Executes the request (including redirects and authentication) on the async executor, the future is completed with the final response or the exception
+	 * Blocking in the connection pool or on the socket is cheap when the executor uses virtual threads
+	 * The timeout applies to each read on the socket and to the request as a whole: if the future is not completed in time, it fails with a TimeoutException
+	 * A future that is cancelled or times out aborts the request, the thread is interrupted (e.g. while waiting for a connection) and the socket is closed (e.g. while waiting for the response)
+	 */
+	public CompletableFuture<HTTPResponse> executeAsync(final HTTPRequest request, final Principal principal, final boolean secure, final boolean followRedirects, final Long timeout, final TimeUnit unit) {
+		final CompletableFuture<HTTPResponse> future = new CompletableFuture<HTTPResponse>();
+		final AsyncExecution execution = new AsyncExecution();
+		future.whenComplete(new BiConsumer<HTTPResponse, Throwable>() {
+			@Override
+			public void accept(HTTPResponse response, Throwable exception) {
+				if (exception != null) {
+					execution.abort();
+				}
+			}
+		});
+		if (timeout != null && timeout > 0) {
+			final long millis = unit == null ? timeout : TimeUnit.MILLISECONDS.convert(timeout, unit);
+			final ScheduledFuture<?> scheduled = getTimeouts().schedule(new Runnable() {
+				@Override
+				public void run() {
+					future.completeExceptionally(new TimeoutException("The request did not complete within " + millis + "ms"));
+				}
+			}, millis, TimeUnit.MILLISECONDS);
+			future.whenComplete(new BiConsumer<HTTPResponse, Throwable>() {
+				@Override
+				public void accept(HTTPResponse response, Throwable exception) {
+					scheduled.cancel(false);
+				}
+			});
+		}
+		try {
+			getAsyncExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!execution.start()) {
+						return;
+					}
+					currentExecution.set(execution);
+					try {
+						HTTPResponse response = execute(request, principal, secure, followRedirects, timeout, unit);
+						execution.finish();
+						// the future was cancelled or timed out in the mean time, nobody is going to read the response
+						if (!future.complete(response)) {
+							discard(response);
+						}
+					}
+					catch (Throwable e) {
+						execution.finish();
+						future.completeExceptionally(e);
+					}
+					finally {
+						currentExecution.remove();
+						// an abort that came in just before the end should not affect the next task on this thread
+						Thread.interrupted();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	private static void discard(HTTPResponse response) {
+		if (response.getContent() instanceof ContentPart) {
+			try {
+				ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+				if (readable != null) {
+					readable.close();
+				}
+			}
+			catch (IOException e) {
+				// nothing to be done
+			}
+		}
+	}
+	
+	private static synchronized ScheduledExecutorService getTimeouts() {
+		if (timeouts == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "http-client-timeout");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			timeouts = executor;
+		}
+		return timeouts;
+	}
+	
 	@Override
-	public HTTPResponse execute(HTTPRequest request, Principal principal, boolean secure, boolean followRedirects, Long timeout, TimeUnit unit) throws IOException, FormatException, ParseException {
+	public HTTPResponse execute(HTTPRequest request, final Principal principal, final boolean secure, final boolean followRedirects, final Long timeout, final TimeUnit unit) throws IOException, FormatException, ParseException {
+		ResponseCache.Origin origin = new ResponseCache.Origin() {
+			@Override
+			public HTTPResponse execute(HTTPRequest request) throws IOException, FormatException, ParseException {
+				return executeUncached(request, principal, secure, followRedirects, timeout, unit);
+			}
+		};
+		// streamed responses can not be shared or stored
+		if (isStreamResponse(request, false)) {
+			return origin.execute(request);
+		}
+		final RequestCoalescer requestCoalescer = this.requestCoalescer;
+		if (requestCoalescer != null) {
+			final ResponseCache.Origin network = origin;
+			origin = new ResponseCache.Origin() {
+				@Override
+				public HTTPResponse execute(HTTPRequest request) throws IOException, FormatException, ParseException {
+					return requestCoalescer.execute(request, principal, secure, network);
+				}
+			};
+		}
+		return responseCache == null ? origin.execute(request) : responseCache.execute(request, principal, secure, origin);
+	}
+	
+	private HTTPResponse executeUncached(HTTPRequest request, Principal principal, boolean secure, boolean followRedirects, Long timeout, TimeUnit unit) throws IOException, FormatException, ParseException {
 		boolean keepAlive = HTTPUtils.keepAlive(request);
 		boolean requestSucceeded = false;
 		HTTPResponse response = null;
@@ -76,75 +291,82 @@ public class DefaultHTTPClient implements TimedHTTPClient {
 		// some hosts keep sending 301 with the exact same Location as you are already accessing but actually their problem is with "GET / HTTP/1.1" and a host header and instead want the full location in the GET request
 		boolean triedAbsoluteRedirect = false;
 		int triesAfter401 = 0;
+		// the response that challenged us and the authorization we answered it with, it is cached once it is accepted
+		HTTPResponse challenge = null;
+		Header challengeAuthorization = null;
+		AuthenticationCache authenticationCache = authenticationHandler == null ? null : this.authenticationCache;
 		String lastHost = null;
+		StreamingResourceProvider streamingProvider = isStreamResponse(request, true) ? new StreamingResourceProvider() : null;
+		StreamingBody body = null;
 		while (!requestSucceeded) {
 			URI uri = HTTPUtils.getURI(request, secure);
 			
-			String host = uri.getAuthority();
-			int port = secure ? 443 : 80;
-			int indexOfColon = host.indexOf(':');
-			if (indexOfColon >= 0) {
-				String substring = host.substring(indexOfColon + 1);
-				if (!substring.trim().isEmpty()) {
-					port = new Integer(substring);
-				}
-				host = host.substring(0, indexOfColon);
-			}
+			String host = getHost(uri);
+			int port = getPort(uri, secure);
 
 			// remove connection if it is closed
 			if (socket != null && socket.isClosed()) {
-				connectionHandler.close(socket);
+				close(socket);
 				socket = null;
 			}
 			
 			if (socket != null && lastHost != null && !lastHost.equals(host + ":" + port)) {
-				connectionHandler.close(socket);
+				close(socket);
 				socket = null;
 			}
 			
 			// (re)connect if no connection
 			if (socket == null) {
-				socket = connectionHandler.connect(host, port, secure);
+				socket = connect(host, port, secure, principal);
 				lastHost = host + ":" + port;
 			}
+			
+			// if the server accepted credentials before, send them along immediately instead of waiting for the challenge
+			boolean preemptive = false;
+			if (authenticationCache != null && MimeUtils.getHeader(HTTPUtils.SERVER_AUTHENTICATE_RESPONSE, request.getContent().getHeaders()) == null) {
+				Header authorization = authenticationCache.authorizeServer(secure, host, port, principal, forRequest(authenticationHandler, request));
+				if (authorization != null) {
+					request.getContent().setHeader(authorization);
+					preemptive = true;
+				}
+			}
 
 			try {
-				// for the actual sending, synchronize on the socket so only one party is interacting with it at the same time
-				synchronized(socket) {
-					if (timeout == null || timeout == 0) {
-						socket.setSoTimeout(0);
-					}
-					else {
-						socket.setSoTimeout((int) (unit == null ? timeout : TimeUnit.MILLISECONDS.convert(timeout, unit)));
-					}
-					// we try on the socket
-					try {
-						response = executor.execute(socket, request, principal, secure, followRedirects);
-					}
-					// we could have network issues (e.g. remote host restarted or whatever)
-					catch (IOException e) {
-						// close the socket
-						connectionHandler.close(socket);
-						if (retryOnFailure) {
-							// and try once more
-							socket = connectionHandler.connect(host, port, secure);
-							synchronized(socket) {
-								try {
-									response = executor.execute(socket, request, principal, secure, followRedirects);
-								}
-								// if we still get an exception, just stop
-								catch (IOException f) {
-									connectionHandler.close(socket);
-									throw f;
-								}
-							}
+				// the socket is leased to us exclusively so it is not locked, a monitor would also pin a virtual thread during the blocking io
+				if (timeout == null || timeout == 0) {
+					socket.setSoTimeout(0);
+				}
+				else {
+					socket.setSoTimeout((int) (unit == null ? timeout : TimeUnit.MILLISECONDS.convert(timeout, unit)));
+				}
+				// we try on the socket
+				try {
+					response = executor.execute(socket, request, principal, secure, followRedirects, streamingProvider);
+				}
+				// we could have network issues (e.g. remote host restarted or whatever)
+				catch (IOException e) {
+					// close the socket
+					close(socket);
+					if (retryOnFailure) {
+						// and try once more
+						socket = connect(host, port, secure, principal);
+						try {
+							response = executor.execute(socket, request, principal, secure, followRedirects, streamingProvider);
 						}
-						else {
-							throw e;
+						// if we still get an exception, just stop
+						catch (IOException f) {
+							close(socket);
+							throw f;
 						}
 					}
+					else {
+						throw e;
+					}
 				}
 
+				if (streamingProvider != null) {
+					body = streamingProvider.takeBody();
+				}
 				keepAlive = HTTPUtils.keepAlive(response);
 
 				// set proxy-keep alive
@@ -153,8 +375,21 @@ public class DefaultHTTPClient implements TimedHTTPClient {
 						request.getContent().setHeader(new MimeHeader("Proxy-Connection", "Keep-Alive")); 
 				}
 				
+				// the answer to the last challenge made it through, remember it for subsequent requests
+				if (challengeAuthorization != null && response.getCode() != 401 && response.getCode() != 407) {
+					if (authenticationCache != null) {
+						authenticationCache.acceptedServer(secure, host, port, principal, challenge, challengeAuthorization);
+					}
+					// connection based schemes (e.g. NTLM) authenticate the connection rather than the request, make sure it is only reused for the same principal
+					if (principal != null && connectionHandler instanceof PooledConnectionHandler && AuthenticationCache.isConnectionBased(AuthenticationCache.getScheme(challengeAuthorization.getValue()))) {
+						((PooledConnectionHandler) connectionHandler).bind(socket, principal);
+					}
+					challenge = null;
+					challengeAuthorization = null;
+				}
+				
 				if (response.getCode() == 407 && authenticationHandler != null) {
-					Header authenticationHeader = HTTPUtils.authenticateProxy(response, connectionHandler.getProxy().getPrincipal(), authenticationHandler);
+					Header authenticationHeader = authenticate(authenticationHandler, response, connectionHandler.getProxy().getPrincipal(), request, true);
 					if (authenticationHeader != null)
 						request.getContent().setHeader(authenticationHeader);
 					else
@@ -168,11 +403,17 @@ public class DefaultHTTPClient implements TimedHTTPClient {
 						requestSucceeded = true;
 					}
 					else {
+						// the credentials we sent without being challenged were not accepted (anymore)
+						if (preemptive) {
+							authenticationCache.invalidateServer(secure, host, port, principal);
+						}
 						triesAfter401++;
-						Header authenticationHeader = HTTPUtils.authenticateServer(response, principal, authenticationHandler);
+						Header authenticationHeader = authenticate(authenticationHandler, response, principal, request, false);
 						if (authenticationHeader != null) {
 							request.getContent().removeHeader(HTTPUtils.SERVER_AUTHENTICATE_RESPONSE);
 							request.getContent().setHeader(authenticationHeader);
+							challenge = response;
+							challengeAuthorization = authenticationHeader;
 						}
 						else {
 							requestSucceeded = true;
@@ -224,23 +465,270 @@ public class DefaultHTTPClient implements TimedHTTPClient {
 				else
 					requestSucceeded = true;
 				
+				// the content of an intermediate response (redirect, authentication challenge) has to be read before the connection can be reused
+				if (body != null && !requestSucceeded) {
+					if (!keepAlive || !discard(body)) {
+						keepAlive = false;
+					}
+					body = null;
+				}
+				
 				if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
 					keepAlive = false;
 				}
 			}
 			finally {
-				if (!keepAlive && socket != null) {
+				// if we are streaming the final response, the connection is released (or closed) once its content is done
+				// if something went wrong halfway through the streamed response, the connection can not be reused
+				if (socket != null && (body == null ? !keepAlive : !requestSucceeded)) {
 					if (!socket.isClosed()) {
-						connectionHandler.close(socket);
+						close(socket);
 					}
 					socket = null;
 				}
 			}
 		}
-		if (keepAlive)
-			connectionHandler.release(socket);
+		if (body != null) {
+			final Socket streamingSocket = socket;
+			final boolean reusable = keepAlive;
+			body.setListener(new StreamingBody.Listener() {
+				@Override
+				public void done(boolean complete) {
+					try {
+						if (complete && reusable && !streamingSocket.isClosed()) {
+							release(streamingSocket);
+						}
+						else {
+							close(streamingSocket);
+						}
+					}
+					catch (IOException e) {
+						logger.warn("Could not release the connection after a streamed response", e);
+					}
+				}
+			});
+		}
+		else if (keepAlive)
+			release(socket);
 		return response;
 	}
+	
+	/**
+	 * Calculates the answer to the challenges in a 401 or 407 response, the SPI handler gets all the challenges at once so it can pick the strongest one
+	 */
+	static Header authenticate(ClientAuthenticationHandler handler, HTTPResponse response, Principal principal, HTTPRequest request, boolean proxy) throws ParseException {
+		if (handler instanceof SPIAuthenticationHandler) {
+			List<AuthenticationChallenge> challenges = AuthenticationChallenge.parse(MimeUtils.getHeaders(proxy ? "Proxy-Authenticate" : "WWW-Authenticate", response.getContent().getHeaders()));
+			String value = ((SPIAuthenticationHandler) handler).authenticate(principal, challenges, request);
+			return value == null ? null : new MimeHeader(proxy ? "Proxy-Authorization" : HTTPUtils.SERVER_AUTHENTICATE_RESPONSE, value);
+		}
+		return proxy
+			? HTTPUtils.authenticateProxy(response, principal, forRequest(handler, request))
+			: HTTPUtils.authenticateServer(response, principal, forRequest(handler, request));
+	}
+	
+	/**
+	 * Handlers that sign the request (e.g. digest) are given the request that is being authenticated
+	 */
+	static ClientAuthenticationHandler forRequest(final ClientAuthenticationHandler handler, final HTTPRequest request) {
+		if (!(handler instanceof RequestAuthenticationHandler)) {
+			return handler;
+		}
+		return new ClientAuthenticationHandler() {
+			@Override
+			public String authenticate(Principal principal, String challenge) {
+				return ((RequestAuthenticationHandler) handler).authenticate(principal, challenge, request);
+			}
+		};
+	}
+	
+	/**
+	 * A pooled connection that is already authenticated for the principal is preferred, connections bound to another principal are never used
+	 */
+	private Socket connect(String host, int port, boolean secure, Principal principal) throws IOException {
+		Socket socket = principal != null && connectionHandler instanceof PooledConnectionHandler
+			? ((PooledConnectionHandler) connectionHandler).connect(host, port, secure, principal)
+			: connectionHandler.connect(host, port, secure);
+		AsyncExecution execution = currentExecution.get();
+		if (execution != null && !execution.attach(socket)) {
+			close(socket);
+			throw new InterruptedIOException("The request to " + host + ":" + port + " was aborted");
+		}
+		return socket;
+	}
+	
+	private boolean isStreamResponse(HTTPRequest request, boolean removeHeader) {
+		Header header = request.getContent() == null ? null : MimeUtils.getHeader(STREAM_RESPONSE_HEADER, request.getContent().getHeaders());
+		if (header == null) {
+			return streamResponses;
+		}
+		// does not need to be transmitted
+		if (removeHeader) {
+			request.getContent().removeHeader(STREAM_RESPONSE_HEADER);
+		}
+		return "true".equalsIgnoreCase(header.getValue().trim());
+	}
+	
+	private static boolean discard(StreamingBody body) {
+		InputStream input = IOUtils.toInputStream(body);
+		byte [] buffer = new byte[8192];
+		try {
+			try {
+				while (input.read(buffer) >= 0) {
+					// skip
+				}
+			}
+			finally {
+				input.close();
+			}
+			return body.isComplete();
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	public List<HTTPResponse> executePipelined(List<HTTPRequest> requests, Principal principal, boolean secure) throws IOException, FormatException, ParseException {
+		return executePipelined(requests, principal, secure, null, null);
+	}
+	
+	/**
+	 * Sends the requests back to back over one connection and reads the responses in order (HTTP/1.1 pipelining)
+	 * All requests must use a safe method and target the same host, redirects and authentication challenges are not handled, the responses are returned as is
+	 * If the connection breaks before all the responses are in, the remaining requests are automatically resent on a new connection
+	 * If pipelining is not enabled (the depth is less than 2), the requests are simply executed one after the other
+	 */
+	public List<HTTPResponse> executePipelined(List<HTTPRequest> requests, Principal principal, boolean secure, Long timeout, TimeUnit unit) throws IOException, FormatException, ParseException {
+		List<HTTPResponse> responses = new ArrayList<HTTPResponse>();
+		if (requests.isEmpty()) {
+			return responses;
+		}
+		else if (pipelineDepth < 2) {
+			for (HTTPRequest request : requests) {
+				responses.add(execute(request, principal, secure, false, timeout, unit));
+			}
+			return responses;
+		}
+		URI uri = HTTPUtils.getURI(requests.get(0), secure);
+		String host = getHost(uri);
+		int port = getPort(uri, secure);
+		for (HTTPRequest request : requests) {
+			if (!pipelinableMethods.contains(request.getMethod().toUpperCase())) {
+				throw new IllegalArgumentException("Only requests with a safe method " + pipelinableMethods + " can be pipelined, not: " + request.getMethod());
+			}
+			URI requestUri = HTTPUtils.getURI(request, secure);
+			if (!host.equals(getHost(requestUri)) || port != getPort(requestUri, secure)) {
+				throw new IllegalArgumentException("All pipelined requests must target the same host " + host + ":" + port + ", not: " + requestUri);
+			}
+		}
+		Socket socket = null;
+		// the amount of times in a row that we did not get a single response on a (new) connection
+		int failedAttempts = 0;
+		boolean success = false;
+		try {
+			while (responses.size() < requests.size()) {
+				if (socket != null && socket.isClosed()) {
+					close(socket);
+					socket = null;
+				}
+				if (socket == null) {
+					socket = connect(host, port, secure, principal);
+				}
+				List<HTTPRequest> batch = requests.subList(responses.size(), Math.min(requests.size(), responses.size() + pipelineDepth));
+				List<HTTPResponse> batchResponses;
+				boolean keepAlive;
+				if (timeout == null || timeout == 0) {
+					socket.setSoTimeout(0);
+				}
+				else {
+					socket.setSoTimeout((int) (unit == null ? timeout : TimeUnit.MILLISECONDS.convert(timeout, unit)));
+				}
+				try {
+					batchResponses = executor.executePipelined(socket, batch, principal, secure);
+					keepAlive = batchResponses.size() == batch.size() && HTTPUtils.keepAlive(batchResponses.get(batchResponses.size() - 1));
+				}
+				catch (IOException e) {
+					batchResponses = new ArrayList<HTTPResponse>();
+					keepAlive = false;
+					if (failedAttempts >= 1 && !retryOnFailure) {
+						throw e;
+					}
+				}
+				if (batchResponses.isEmpty() && ++failedAttempts > 2) {
+					throw new IOException("Could not get a pipelined response from " + host + ":" + port + " after " + failedAttempts + " attempts");
+				}
+				else if (!batchResponses.isEmpty()) {
+					failedAttempts = 0;
+				}
+				responses.addAll(batchResponses);
+				// the requests that did not get a response are resent on a new connection
+				if (!keepAlive || socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+					close(socket);
+					socket = null;
+				}
+			}
+			success = true;
+		}
+		finally {
+			// whatever goes wrong, the socket has to go back to the connection handler or its slot is lost
+			if (socket != null) {
+				if (success) {
+					release(socket);
+				}
+				else {
+					try {
+						close(socket);
+					}
+					catch (IOException e) {
+						logger.debug("Could not close the pipelined connection to " + host + ":" + port, e);
+					}
+				}
+			}
+		}
+		return responses;
+	}
+	
+	private void close(Socket socket) throws IOException {
+		detach(socket);
+		executor.forget(socket);
+		connectionHandler.close(socket);
+	}
+	
+	private void release(Socket socket) throws IOException {
+		// once it is back in the pool, an abort of this request must no longer close it
+		detach(socket);
+		connectionHandler.release(socket);
+		// some connection handlers close the socket on release
+		if (socket.isClosed()) {
+			executor.forget(socket);
+		}
+	}
+	
+	private static void detach(Socket socket) {
+		AsyncExecution execution = currentExecution.get();
+		if (execution != null) {
+			execution.detach(socket);
+		}
+	}
+	
+	private static String getHost(URI uri) {
+		String host = uri.getAuthority();
+		int indexOfColon = host.indexOf(':');
+		return indexOfColon >= 0 ? host.substring(0, indexOfColon) : host;
+	}
+	
+	private static int getPort(URI uri, boolean secure) {
+		String host = uri.getAuthority();
+		int port = secure ? 443 : 80;
+		int indexOfColon = host.indexOf(':');
+		if (indexOfColon >= 0) {
+			String substring = host.substring(indexOfColon + 1);
+			if (!substring.trim().isEmpty()) {
+				port = new Integer(substring);
+			}
+		}
+		return port;
+	}
 
 	public ConnectionHandler getConnectionHandler() {
 		return connectionHandler;
@@ -281,8 +769,77 @@ public class DefaultHTTPClient implements TimedHTTPClient {
 
 	@Override
 	public void close() throws IOException {
+		synchronized(this) {
+			if (defaultAsyncExecutor != null) {
+				defaultAsyncExecutor.shutdown();
+				defaultAsyncExecutor = null;
+			}
+		}
+		if (closeListener != null) {
+			((PooledConnectionHandler) connectionHandler).removeCloseListener(closeListener);
+		}
 		getConnectionHandler().close();
 	}
+	
+	public synchronized Executor getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			if (defaultAsyncExecutor == null) {
+				defaultAsyncExecutor = newDefaultAsyncExecutor(getMaxAsyncThreads());
+			}
+			return defaultAsyncExecutor;
+		}
+		return asyncExecutor;
+	}
+
+	public synchronized DefaultHTTPClient setAsyncExecutor(Executor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+		return this;
+	}
+	
+	/**
+	 * The maximum amount of platform threads for the default executor, by default this is the global limit of the connection pool (if any)
+	 * There is no point in running more requests at once than there are connections to run them on
+	 */
+	public int getMaxAsyncThreads() {
+		if (maxAsyncThreads > 0) {
+			return maxAsyncThreads;
+		}
+		else if (connectionHandler instanceof PooledConnectionHandler && ((PooledConnectionHandler) connectionHandler).getMaxConnections() > 0) {
+			return ((PooledConnectionHandler) connectionHandler).getMaxConnections();
+		}
+		return DEFAULT_MAX_ASYNC_THREADS;
+	}
+
+	/**
+	 * This must be set before the first asynchronous request
+	 */
+	public DefaultHTTPClient setMaxAsyncThreads(int maxAsyncThreads) {
+		this.maxAsyncThreads = maxAsyncThreads;
+		return this;
+	}
+	
+	/**
+	 * Virtual threads are only available from java 21 onwards (they are looked up at runtime as we compile against java 8)
+	 * On older JVMs we fall back to a bounded pool of daemon threads, idle threads are stopped after a minute
+	 */
+	private static ExecutorService newDefaultAsyncExecutor(int maxThreads) {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		}
+		catch (Exception e) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "http-client-async");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			return executor;
+		}
+	}
 
 	public HTTPExecutor getExecutor() {
 		return executor;
@@ -295,4 +852,116 @@ public class DefaultHTTPClient implements TimedHTTPClient {
 	public void setForceContentLength(boolean forceContentLength) {
 		executor.setForceContentLength(forceContentLength);
 	}
+
+	public ContentCoding getContentCoding() {
+		return executor.getContentCoding();
+	}
+
+	public DefaultHTTPClient setContentCoding(ContentCoding contentCoding) {
+		executor.setContentCoding(contentCoding);
+		return this;
+	}
+
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	public DefaultHTTPClient setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+		return this;
+	}
+
+	public AuthenticationCache getAuthenticationCache() {
+		return authenticationCache;
+	}
+
+	public DefaultHTTPClient setAuthenticationCache(AuthenticationCache authenticationCache) {
+		this.authenticationCache = authenticationCache;
+		return this;
+	}
+
+	public RequestCoalescer getRequestCoalescer() {
+		return requestCoalescer;
+	}
+
+	public DefaultHTTPClient setRequestCoalescer(RequestCoalescer requestCoalescer) {
+		this.requestCoalescer = requestCoalescer;
+		return this;
+	}
+
+	public boolean isStreamResponses() {
+		return streamResponses;
+	}
+
+	public DefaultHTTPClient setStreamResponses(boolean streamResponses) {
+		this.streamResponses = streamResponses;
+		return this;
+	}
+
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	public DefaultHTTPClient setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = pipelineDepth;
+		return this;
+	}
+	
+	/**
+	 * Tracks the thread and the socket of an asynchronous request so it can be aborted
+	 */
+	private static class AsyncExecution {
+		private Thread thread;
+		private Socket socket;
+		private boolean aborted, finished;
+		
+		public synchronized boolean start() {
+			if (aborted) {
+				return false;
+			}
+			thread = Thread.currentThread();
+			return true;
+		}
+		
+		public synchronized void finish() {
+			finished = true;
+			thread = null;
+			socket = null;
+		}
+		
+		/**
+		 * Returns false if the execution was aborted, the socket should not be used then
+		 */
+		public synchronized boolean attach(Socket socket) {
+			if (aborted) {
+				return false;
+			}
+			this.socket = socket;
+			return true;
+		}
+		
+		public synchronized void detach(Socket socket) {
+			if (this.socket == socket) {
+				this.socket = null;
+			}
+		}
+		
+		public synchronized void abort() {
+			if (aborted || finished) {
+				return;
+			}
+			aborted = true;
+			if (socket != null) {
+				try {
+					socket.close();
+				}
+				catch (IOException e) {
+					// the thread will notice
+				}
+			}
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+	}
 }
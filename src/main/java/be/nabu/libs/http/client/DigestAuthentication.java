@@ -17,17 +17,289 @@
 
 package be.nabu.libs.http.client;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-import be.nabu.libs.http.api.client.ClientAuthenticationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class DigestAuthentication implements ClientAuthenticationHandler {
+import be.nabu.libs.authentication.api.principals.BasicPrincipal;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Part;
 
+/**
+ * Digest authentication as described in RFC 7616 (and the older RFC 2617 and RFC 2069 where the server does not send a qop)
+ * Supports MD5, SHA-256 and SHA-512-256 with their session variants, qop "auth" is preferred over "auth-int" because it does not require hashing the body
+ * The nonce count is tracked per realm and nonce so the same challenge can be answered again for subsequent requests (see the authentication cache) without a new 401
+ */
+public class DigestAuthentication implements RequestAuthenticationHandler {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private SecureRandom random = new SecureRandom();
+	private int maxSessions = 1024;
+	
+	/**
+	 * The nonces we have answered, keyed by realm, nonce and user
+	 */
+	private Map<String, Session> sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+			return size() > maxSessions;
+		}
+	};
+	
 	@Override
 	public String authenticate(Principal principal, String challenge) {
-		// TODO Auto-generated method stub
+		if (isDigest(challenge)) {
+			logger.debug("Digest authentication is requested but the request is not known");
+		}
 		return null;
 	}
+	
+	@Override
+	public String authenticate(Principal principal, String challenge, HTTPRequest request) {
+		if (!isDigest(challenge)) {
+			return null;
+		}
+		else if (principal == null) {
+			logger.debug("Digest authentication is requested but no principal is present");
+			return null;
+		}
+		else if (!(principal instanceof BasicPrincipal)) {
+			logger.debug("Digest authentication is requested but the principal that is given is not of the type 'BasicPrincipal'");
+			return null;
+		}
+		else if (request == null) {
+			logger.debug("Digest authentication is requested but the request is not known");
+			return null;
+		}
+		Map<String, String> parameters = AuthenticationChallenge.parse(challenge).get(0).getParameters();
+		String realm = parameters.get("realm");
+		String nonce = parameters.get("nonce");
+		if (realm == null || nonce == null) {
+			logger.debug("Digest challenge without realm or nonce: {}", challenge);
+			return null;
+		}
+		String algorithm = parameters.containsKey("algorithm") ? parameters.get("algorithm") : "MD5";
+		boolean sessionAlgorithm = algorithm.toLowerCase(Locale.ENGLISH).endsWith("-sess");
+		String hashName = getHashName(sessionAlgorithm ? algorithm.substring(0, algorithm.length() - "-sess".length()) : algorithm);
+		if (hashName == null) {
+			logger.debug("Unsupported digest algorithm: {}", algorithm);
+			return null;
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(hashName);
+		}
+		catch (NoSuchAlgorithmException e) {
+			logger.debug("The digest algorithm {} is not available in this runtime", algorithm);
+			return null;
+		}
+		
+		String qop = null;
+		if (parameters.containsKey("qop")) {
+			boolean auth = false, authInt = false;
+			for (String option : parameters.get("qop").split(",")) {
+				option = option.trim();
+				if (option.equalsIgnoreCase("auth")) {
+					auth = true;
+				}
+				else if (option.equalsIgnoreCase("auth-int")) {
+					authInt = true;
+				}
+			}
+			qop = auth ? "auth" : (authInt ? "auth-int" : null);
+			if (qop == null) {
+				logger.debug("None of the offered qop values are supported: {}", parameters.get("qop"));
+				return null;
+			}
+		}
+		
+		Charset charset = "UTF-8".equalsIgnoreCase(parameters.get("charset")) ? UTF_8 : ISO_8859_1;
+		String username = principal.getName() == null ? "" : principal.getName();
+		String password = ((BasicPrincipal) principal).getPassword();
+		String uri = request.getTarget();
+		
+		Session session = getSession(realm + "\n" + nonce + "\n" + username);
+		String nc = String.format("%08x", session.nonceCount.incrementAndGet());
+		
+		String ha1 = hash(digest, charset, username + ":" + realm + ":" + (password == null ? "" : password));
+		if (sessionAlgorithm) {
+			ha1 = hash(digest, charset, ha1 + ":" + nonce + ":" + session.cnonce);
+		}
+		String ha2;
+		if ("auth-int".equals(qop)) {
+			byte [] body;
+			try {
+				body = getBody(request.getContent());
+			}
+			catch (IOException e) {
+				logger.debug("Could not read the body for digest auth-int", e);
+				return null;
+			}
+			if (body == null) {
+				logger.debug("Digest auth-int is requested but the body can not be read more than once");
+				return null;
+			}
+			digest.reset();
+			ha2 = hash(digest, charset, request.getMethod() + ":" + uri + ":" + toHex(digest.digest(body)));
+		}
+		else {
+			ha2 = hash(digest, charset, request.getMethod() + ":" + uri);
+		}
+		String response = qop == null
+			? hash(digest, charset, ha1 + ":" + nonce + ":" + ha2)
+			: hash(digest, charset, ha1 + ":" + nonce + ":" + nc + ":" + session.cnonce + ":" + qop + ":" + ha2);
+		
+		StringBuilder builder = new StringBuilder("Digest ");
+		if ("true".equalsIgnoreCase(parameters.get("userhash"))) {
+			builder.append("username=\"").append(hash(digest, charset, username + ":" + realm)).append("\", userhash=true");
+		}
+		else if (charset == UTF_8 && !isAscii(username)) {
+			try {
+				builder.append("username*=UTF-8''").append(URLEncoder.encode(username, "UTF-8").replace("+", "%20"));
+			}
+			catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		else {
+			builder.append("username=\"").append(quote(username)).append("\"");
+		}
+		builder.append(", realm=\"").append(quote(realm)).append("\"");
+		builder.append(", nonce=\"").append(quote(nonce)).append("\"");
+		builder.append(", uri=\"").append(quote(uri)).append("\"");
+		builder.append(", algorithm=").append(algorithm);
+		builder.append(", response=\"").append(response).append("\"");
+		if (parameters.containsKey("opaque")) {
+			builder.append(", opaque=\"").append(quote(parameters.get("opaque"))).append("\"");
+		}
+		if (qop != null) {
+			builder.append(", qop=").append(qop);
+			builder.append(", nc=").append(nc);
+			builder.append(", cnonce=\"").append(session.cnonce).append("\"");
+		}
+		return builder.toString();
+	}
 
-
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+	public DigestAuthentication setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+		return this;
+	}
+	
+	/**
+	 * A session for a nonce reuses the client nonce, this keeps the -sess variants stable and the nonce count is what protects against replays
+	 */
+	private Session getSession(String key) {
+		synchronized(sessions) {
+			Session session = sessions.get(key);
+			if (session == null) {
+				session = new Session(newClientNonce());
+				sessions.put(key, session);
+			}
+			return session;
+		}
+	}
+	
+	String newClientNonce() {
+		byte [] bytes = new byte[16];
+		random.nextBytes(bytes);
+		return toHex(bytes);
+	}
+	
+	private static boolean isDigest(String challenge) {
+		return challenge != null && challenge.trim().toLowerCase(Locale.ENGLISH).startsWith("digest");
+	}
+	
+	private static String getHashName(String algorithm) {
+		if (algorithm.equalsIgnoreCase("MD5")) {
+			return "MD5";
+		}
+		else if (algorithm.equalsIgnoreCase("SHA-256")) {
+			return "SHA-256";
+		}
+		else if (algorithm.equalsIgnoreCase("SHA-512-256")) {
+			return "SHA-512/256";
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the body of the request or null if it can not be read without consuming it
+	 */
+	private static byte [] getBody(Part part) throws IOException {
+		if (!(part instanceof ContentPart)) {
+			return new byte[0];
+		}
+		else if (!((ContentPart) part).isReopenable()) {
+			return null;
+		}
+		ReadableContainer<ByteBuffer> readable = ((ContentPart) part).getReadable();
+		if (readable == null) {
+			return new byte[0];
+		}
+		try {
+			return IOUtils.toBytes(readable);
+		}
+		finally {
+			readable.close();
+		}
+	}
+	
+	private static String hash(MessageDigest digest, Charset charset, String value) {
+		digest.reset();
+		return toHex(digest.digest(value.getBytes(charset)));
+	}
+	
+	private static String toHex(byte [] bytes) {
+		char [] hex = "0123456789abcdef".toCharArray();
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte single : bytes) {
+			builder.append(hex[(single >> 4) & 0xf]).append(hex[single & 0xf]);
+		}
+		return builder.toString();
+	}
+	
+	private static String quote(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+	
+	private static boolean isAscii(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) > 127) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static class Session {
+		private String cnonce;
+		private AtomicLong nonceCount = new AtomicLong();
+		
+		public Session(String cnonce) {
+			this.cnonce = cnonce;
+		}
+	}
 }
@@ -0,0 +1,100 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+
+/**
+ * A request that sends the content of a file as is
+ * On a plain connection that has a channel, the executor sends the file with FileChannel.transferTo() so it is not copied through the heap
+ * Whenever the request is formatted in another way (e.g. after a redirect) the content is streamed from the file, it is read again each time the request is sent
+ */
+public class FileHTTPRequest extends DefaultHTTPRequest {
+
+	private Path file;
+	
+	public FileHTTPRequest(String method, String target, Path file, Header...headers) throws IOException {
+		super(method, target, new FileContentPart(file, headers));
+		this.file = file;
+		getContent().setHeader(new MimeHeader("Content-Length", Long.toString(Files.size(file))));
+	}
+
+	public Path getFile() {
+		return file;
+	}
+	
+	private static class FileContentPart extends PlainMimeContentPart {
+		
+		private Path file;
+		
+		public FileContentPart(Path file, Header...headers) {
+			super(null, null, headers);
+			this.file = file;
+		}
+
+		/**
+		 * Every call starts from the beginning of the file, it is only opened once the content is actually read
+		 */
+		@Override
+		public ReadableContainer<ByteBuffer> getReadable() {
+			return IOUtils.wrap(new InputStream() {
+				private InputStream input;
+				
+				private InputStream getInput() throws IOException {
+					if (input == null) {
+						input = Files.newInputStream(file);
+					}
+					return input;
+				}
+				
+				@Override
+				public int read() throws IOException {
+					return getInput().read();
+				}
+				
+				@Override
+				public int read(byte[] bytes, int offset, int length) throws IOException {
+					return getInput().read(bytes, offset, length);
+				}
+				
+				@Override
+				public void close() throws IOException {
+					if (input != null) {
+						input.close();
+					}
+				}
+			});
+		}
+
+		@Override
+		public boolean isReopenable() {
+			return true;
+		}
+	}
+}
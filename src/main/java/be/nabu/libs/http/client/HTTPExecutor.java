@@ -19,21 +19,30 @@ package be.nabu.libs.http.client;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.CookieHandler;
+import java.net.CookieManager;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.Principal;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLSocket;
 
@@ -47,6 +56,9 @@ import be.nabu.libs.http.api.HTTPResponse;
 import be.nabu.libs.http.core.DefaultHTTPResponse;
 import be.nabu.libs.http.core.HTTPFormatter;
 import be.nabu.libs.http.core.HTTPParser;
+import be.nabu.libs.http.client.metrics.RequestListener;
+import be.nabu.libs.http.client.metrics.RequestMetrics;
+import be.nabu.libs.http.client.metrics.RequestStatistics;
 import be.nabu.libs.http.core.HTTPUtils;
 import be.nabu.libs.resources.api.DynamicResourceProvider;
 import be.nabu.utils.io.IOUtils;
@@ -69,6 +81,7 @@ public class HTTPExecutor {
 	private boolean useContinue;
 	private HTTPInterceptor interceptor;
 	private boolean forceContentLength = false;
+	private ContentCoding contentCoding;
 	
 	// these are the methods that are automatically assumed to be continuable
 	// you can force a continue by explicitly setting the header though
@@ -77,6 +90,12 @@ public class HTTPExecutor {
 	
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	
+	// sockets do not override equals/hashcode so this is an identity lookup
+	private Map<Socket, SocketStreams> streams = new ConcurrentHashMap<Socket, SocketStreams>();
+	
+	private RequestStatistics requestStatistics = new RequestStatistics();
+	private RequestListener requestListener;
+	
 	public HTTPExecutor(DynamicResourceProvider dynamicResourceProvider, CookieHandler cookieHandler, boolean useContinue) {
 		this.cookieHandler = cookieHandler;
 		this.formatter = new HTTPFormatter(false);
@@ -84,9 +103,34 @@ public class HTTPExecutor {
 		this.useContinue = useContinue;
 	}
 	
-	@SuppressWarnings("resource")
 	public HTTPResponse execute(Socket socket, HTTPRequest request, Principal principal, boolean secure, boolean followRedirects) throws IOException, FormatException, ParseException {
+		return execute(socket, request, principal, secure, followRedirects, null);
+	}
+	
+	/**
+	 * If a streaming provider is passed in, the response content is not copied but read straight from the socket, the caller can get the body from the provider
+	 * The socket can not be used for anything else until that body is done, the response is also not reopenable
+	 * The byte count in the metrics only includes the part of the response that was read by the parser
+	 */
+	public HTTPResponse execute(Socket socket, HTTPRequest request, Principal principal, boolean secure, boolean followRedirects, StreamingResourceProvider streamingProvider) throws IOException, FormatException, ParseException {
+		SocketStreams streams = getStreams(socket);
+		long sent = streams.sent.getCount(), received = streams.received.getCount();
+		long started = System.nanoTime();
+		try {
+			HTTPResponse response = execute(socket, streams, request, principal, secure, followRedirects, streamingProvider);
+			executed(request, response, started, streams.sent.getCount() - sent, streams.received.getCount() - received);
+			return response;
+		}
+		catch (Exception e) {
+			failed(request, e, started, streams.sent.getCount() - sent, streams.received.getCount() - received);
+			throw e;
+		}
+	}
+	
+	@SuppressWarnings("resource")
+	private HTTPResponse execute(Socket socket, SocketStreams streams, HTTPRequest request, Principal principal, boolean secure, boolean followRedirects, StreamingResourceProvider streamingProvider) throws IOException, FormatException, ParseException {
 		URI uri = null;
+		HTTPParser parser = streamingProvider == null ? this.parser : new HTTPParser(streamingProvider, true);
 
 		if (interceptor != null) {
 			interceptor.intercept(request);
@@ -95,49 +139,24 @@ public class HTTPExecutor {
 		// allow centralized interception of requests (may be deprecated?)
 		request = HTTPInterceptorManager.intercept(request);
 		
-		try {
-			uri = request.getMethod().equalsIgnoreCase("CONNECT") 
-				? new URI(socket instanceof SSLSocket ? "https" : "http", socket.getInetAddress().getHostName() + ":" + socket.getPort(), "/", null, null) 
-				: HTTPUtils.getURI(request, secure);
-		}
-		catch (URISyntaxException e) {
-			throw new FormatException(e);
+		if (contentCoding != null) {
+			request = contentCoding.encode(request);
 		}
+		
+		uri = getURI(socket, request, secure);
 	
-		InputStream input = new BufferedInputStream(socket.getInputStream());
-		OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+		InputStream input = streams.input;
+		OutputStream output = streams.output;
 		
 		if (debug) {
 			output = new LoggingOutputStream(output);
 			input = new LoggingInputStream(input);
 		}
 		
-		List<Header> additionalHeaders = new ArrayList<Header>();
-		if (cookieHandler != null) {
-			Map<String, List<String>> cookies = cookieHandler.get(uri, getHeadersAsMap(request.getContent().getHeaders()));
-			StringBuilder cookieBuilder = new StringBuilder();
-			for (String cookie : cookies.keySet()) {
-				for (String value : cookies.get(cookie)) {
-					//additionalHeaders.add(new MimeHeader(cookie, value));
-					if (!cookieBuilder.toString().isEmpty()) {
-						cookieBuilder.append(";");
-					}
-					cookieBuilder.append(value);
-				}
-			}
-			if (!cookieBuilder.toString().isEmpty()) {
-				additionalHeaders.add(new MimeHeader("Cookie", cookieBuilder.toString()));
-			}
-		}
-		request.getContent().setHeader(additionalHeaders.toArray(new Header[additionalHeaders.size()]));
+		setCookies(uri, request);
 
 		Date timestamp = new Date();
-		logger.debug("> socket:" + socket.hashCode() + " [request:" + request.hashCode() + "] " + request.getMethod() + ": " + uri);
-		if (logger.isTraceEnabled()) {
-			for (Header header : request.getContent().getHeaders()) {
-				logger.trace("	> [" + request.hashCode() + "] " + header.getName() + ": " + header.getValue());
-			}
-		}
+		logRequest(socket, request, uri);
 		
 		// only use continue
 		Header expectHeader = request.getContent() != null ? MimeUtils.getHeader("Expect", request.getContent().getHeaders()) : null;
@@ -158,13 +177,22 @@ public class HTTPExecutor {
 				HTTPResponse continueResponse = parser.parseResponse(readable);
 				if (continueResponse.getCode() == 100) {
 					logger.trace("> [" + request.hashCode() + "] Headers OK, sending content");
-					formatter.formatRequestContent(request, IOUtils.wrap(output));
+					if (request instanceof FileHTTPRequest) {
+						writeFile(socket, streams, ((FileHTTPRequest) request).getFile(), output);
+					}
+					else {
+						formatter.formatRequestContent(request, IOUtils.wrap(output));
+					}
 				}
 				else {
 					logger.trace("> [" + request.hashCode() + "] Headers rejected [" + continueResponse.getCode() + "]: " + continueResponse.getMessage());
 					return continueResponse;
 				}
 			}
+			else if (request instanceof FileHTTPRequest) {
+				formatter.formatRequestHeaders(request, IOUtils.wrap(output));
+				writeFile(socket, streams, ((FileHTTPRequest) request).getFile(), output);
+			}
 			else if (bufferRequestHeader != null && "true".equalsIgnoreCase(bufferRequestHeader.getValue())) {
 				// does not need to be transmitted
 				request.getContent().removeHeader("X-Nabu-Buffer-Request-Formatting");
@@ -189,33 +217,10 @@ public class HTTPExecutor {
 			output.flush();
 			
 			HTTPResponse response = parser.parseResponse(readable);
-			
-			// link to request
-			if (response instanceof DefaultHTTPResponse) {
-				((DefaultHTTPResponse) response).setRequest(request);
+			if (streamingProvider != null && streamingProvider.getBody() != null && !debug) {
+				setDirectSource(socket, streams, response, streamingProvider.getBody());
 			}
-			
-			// we back it with a dynamic resource provider
-			// this "should" be reopenable but...
-			MimeUtils.setReopenable(response.getContent(), true);
-			
-			if (interceptor != null) {
-				interceptor.intercept(response);
-			}
-			// allow intercept of response
-			response = HTTPInterceptorManager.intercept(response);
-	
-			logger.debug("< socket:" + socket.hashCode() + " [request:" + request.hashCode() + "] (" + (new Date().getTime() - timestamp.getTime()) + "ms) " + response.getCode() + ": " + response.getMessage());
-			if (logger.isTraceEnabled() && response.getContent() != null) {
-				for (Header header : response.getContent().getHeaders()) {
-					logger.trace("	< [" + request.hashCode() + "] " + header.getName() + ": " + header.getValue());
-				}
-			}
-			
-			// push the response into the cookiestore
-			if (cookieHandler != null && response.getContent() != null)
-				cookieHandler.put(uri, getHeadersAsMap(response.getContent().getHeaders()));
-			return response;
+			return finish(socket, request, uri, response, timestamp, streamingProvider == null);
 		}
 		catch (ParseException e) {
 			// if the readable was closed, we assume parse exceptions occured because of IO issues
@@ -227,6 +232,332 @@ public class HTTPExecutor {
 			}
 		}
 	}
+	/**
+	 * Writes all the requests back to back on the socket before reading any of the responses, the responses are parsed in the order of the requests
+	 * If the connection is closed before all the responses are received, only the responses that did arrive are returned, the caller can resend the other requests
+	 * This is only meant for safe requests (like GET), continue-handling is not applied
+	 */
+	@SuppressWarnings("resource")
+	public List<HTTPResponse> executePipelined(Socket socket, List<HTTPRequest> requests, Principal principal, boolean secure) throws IOException, FormatException, ParseException {
+		List<HTTPRequest> interceptedRequests = new ArrayList<HTTPRequest>();
+		List<URI> uris = new ArrayList<URI>();
+		for (HTTPRequest request : requests) {
+			if (interceptor != null) {
+				interceptor.intercept(request);
+			}
+			request = HTTPInterceptorManager.intercept(request);
+			if (contentCoding != null) {
+				request = contentCoding.encode(request);
+			}
+			URI uri = getURI(socket, request, secure);
+			setCookies(uri, request);
+			interceptedRequests.add(request);
+			uris.add(uri);
+		}
+		
+		SocketStreams streams = getStreams(socket);
+		InputStream input = streams.input;
+		OutputStream output = streams.output;
+		
+		if (debug) {
+			output = new LoggingOutputStream(output);
+			input = new LoggingInputStream(input);
+		}
+		
+		long started = System.nanoTime();
+		long sent = streams.sent.getCount(), received = streams.received.getCount();
+		List<HTTPResponse> responses = new ArrayList<HTTPResponse>();
+		try {
+			return executePipelined(socket, interceptedRequests, uris, input, output, responses);
+		}
+		catch (Exception e) {
+			for (int i = responses.size(); i < interceptedRequests.size(); i++) {
+				failed(interceptedRequests.get(i), e, started, 0, 0);
+			}
+			throw e;
+		}
+		finally {
+			// the bytes can not be attributed to individual requests
+			requestStatistics.addBytes(streams.sent.getCount() - sent, streams.received.getCount() - received);
+		}
+	}
+	
+	private List<HTTPResponse> executePipelined(Socket socket, List<HTTPRequest> interceptedRequests, List<URI> uris, InputStream input, OutputStream output, List<HTTPResponse> responses) throws IOException, FormatException, ParseException {
+		long started = System.nanoTime();
+		Date timestamp = new Date();
+		WritableContainer<ByteBuffer> writable = IOUtils.wrap(output);
+		for (int i = 0; i < interceptedRequests.size(); i++) {
+			logRequest(socket, interceptedRequests.get(i), uris.get(i));
+			if (forceContentLength) {
+				formatter.formatRequestWithContentLength(interceptedRequests.get(i), writable);
+			}
+			else {
+				formatter.formatRequest(interceptedRequests.get(i), writable);
+			}
+		}
+		output.flush();
+		
+		EOFReadableContainer<ByteBuffer> readable = new EOFReadableContainer<ByteBuffer>(IOUtils.wrap(input));
+		for (int i = 0; i < interceptedRequests.size(); i++) {
+			HTTPResponse response;
+			try {
+				response = parser.parseResponse(readable);
+			}
+			catch (IOException e) {
+				if (responses.isEmpty()) {
+					throw e;
+				}
+				logger.debug("Pipelined connection " + socket.hashCode() + " broke after " + responses.size() + "/" + interceptedRequests.size() + " responses", e);
+				break;
+			}
+			catch (ParseException e) {
+				if (!readable.isEOF()) {
+					throw e;
+				}
+				else if (responses.isEmpty()) {
+					throw new IOException("Could not parse the response because the connection was closed", e);
+				}
+				logger.debug("Pipelined connection " + socket.hashCode() + " was closed after " + responses.size() + "/" + interceptedRequests.size() + " responses");
+				break;
+			}
+			responses.add(finish(socket, interceptedRequests.get(i), uris.get(i), response, timestamp, true));
+			executed(interceptedRequests.get(i), responses.get(i), started, 0, 0);
+			// the server will not process any further requests on this connection
+			if (!HTTPUtils.keepAlive(response)) {
+				break;
+			}
+		}
+		return responses;
+	}
+	
+	/**
+	 * On a plain connection with a channel, the file is sent with transferTo() which (depending on the OS) does not copy it through the heap
+	 */
+	private void writeFile(Socket socket, SocketStreams streams, Path file, OutputStream output) throws IOException {
+		// the headers must be on the wire before we start writing to the channel
+		output.flush();
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			SocketChannel target = socket.getChannel();
+			if (target != null && target.isBlocking() && !(socket instanceof SSLSocket) && !debug) {
+				long size = channel.size();
+				long position = 0;
+				while (position < size) {
+					position += channel.transferTo(position, size - position, target);
+				}
+				streams.sent.add(position);
+			}
+			else {
+				InputStream input = Channels.newInputStream(channel);
+				byte [] buffer = new byte[65536];
+				int read;
+				while ((read = input.read(buffer)) >= 0) {
+					output.write(buffer, 0, read);
+				}
+			}
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * A fixed length response on a plain connection with a channel can be written to a file with transferFrom()
+	 */
+	private void setDirectSource(Socket socket, final SocketStreams streams, HTTPResponse response, StreamingBody body) {
+		final SocketChannel channel = socket.getChannel();
+		if (channel == null || socket instanceof SSLSocket || response.getContent() == null) {
+			return;
+		}
+		Header [] headers = response.getContent().getHeaders();
+		Long contentLength = MimeUtils.getContentLength(headers);
+		if (contentLength == null || MimeUtils.getHeader("Transfer-Encoding", headers) != null || MimeUtils.getHeader("Content-Encoding", headers) != null) {
+			return;
+		}
+		body.setDirectSource(new StreamingBody.DirectSource() {
+			@Override
+			public long transferTo(FileChannel target, long position, long length) throws IOException {
+				// part of the content may already have been read into the buffer together with the headers
+				int buffered = (int) Math.min(length, streams.input.getBuffered());
+				long transferred = 0;
+				if (buffered > 0) {
+					byte [] bytes = new byte[buffered];
+					int offset = 0;
+					while (offset < buffered) {
+						offset += streams.input.read(bytes, offset, buffered - offset);
+					}
+					java.nio.ByteBuffer wrapped = java.nio.ByteBuffer.wrap(bytes);
+					while (wrapped.hasRemaining()) {
+						target.write(wrapped, position + wrapped.position());
+					}
+					transferred += buffered;
+				}
+				while (transferred < length) {
+					long amount = target.transferFrom(channel, position + transferred, length - transferred);
+					if (amount <= 0) {
+						throw new EOFException("The connection was closed after " + transferred + "/" + length + " bytes of the response");
+					}
+					streams.received.add(amount);
+					transferred += amount;
+				}
+				return transferred;
+			}
+		}, contentLength);
+	}
+	
+	private URI getURI(Socket socket, HTTPRequest request, boolean secure) throws FormatException {
+		try {
+			return request.getMethod().equalsIgnoreCase("CONNECT") 
+				? new URI(socket instanceof SSLSocket ? "https" : "http", socket.getInetAddress().getHostName() + ":" + socket.getPort(), "/", null, null) 
+				: HTTPUtils.getURI(request, secure);
+		}
+		catch (URISyntaxException e) {
+			throw new FormatException(e);
+		}
+	}
+	
+	private void setCookies(URI uri, HTTPRequest request) throws IOException {
+		if (cookieHandler == null || !mightHaveCookies(uri)) {
+			return;
+		}
+		// the cookie manager does not use the request headers
+		Map<String, List<String>> requestHeaders = cookieHandler instanceof CookieManager 
+			? Collections.<String, List<String>>emptyMap() 
+			: getHeadersAsMap(request.getContent().getHeaders());
+		Map<String, List<String>> cookies = cookieHandler.get(uri, requestHeaders);
+		StringBuilder cookieBuilder = new StringBuilder();
+		for (List<String> values : cookies.values()) {
+			for (String value : values) {
+				if (cookieBuilder.length() > 0) {
+					cookieBuilder.append(";");
+				}
+				cookieBuilder.append(value);
+			}
+		}
+		if (cookieBuilder.length() > 0) {
+			request.getContent().setHeader(new MimeHeader("Cookie", cookieBuilder.toString()));
+		}
+	}
+	
+	/**
+	 * If the cookie manager is backed by a concurrent cookie store, we can quickly check whether there is anything for the host
+	 */
+	private boolean mightHaveCookies(URI uri) {
+		if (cookieHandler instanceof CookieManager && ((CookieManager) cookieHandler).getCookieStore() instanceof ConcurrentCookieStore) {
+			return ((ConcurrentCookieStore) ((CookieManager) cookieHandler).getCookieStore()).hasCookies(uri.getHost());
+		}
+		return true;
+	}
+	
+	private void storeCookies(URI uri, Header...headers) throws IOException {
+		if (cookieHandler instanceof CookieManager) {
+			// the cookie manager only looks at the set-cookie headers
+			Map<String, List<String>> cookies = null;
+			for (Header header : headers) {
+				if (header.getValue() != null && (header.getName().equalsIgnoreCase("Set-Cookie") || header.getName().equalsIgnoreCase("Set-Cookie2"))) {
+					if (cookies == null) {
+						cookies = new HashMap<String, List<String>>();
+					}
+					String name = header.getName().toLowerCase();
+					if (!cookies.containsKey(name)) {
+						cookies.put(name, new ArrayList<String>());
+					}
+					cookies.get(name).add(MimeUtils.getFullHeaderValue(header));
+				}
+			}
+			if (cookies != null) {
+				cookieHandler.put(uri, cookies);
+			}
+		}
+		else {
+			cookieHandler.put(uri, getHeadersAsMap(headers));
+		}
+	}
+	
+	private void logRequest(Socket socket, HTTPRequest request, URI uri) {
+		logger.debug("> socket:" + socket.hashCode() + " [request:" + request.hashCode() + "] " + request.getMethod() + ": " + uri);
+		if (logger.isTraceEnabled()) {
+			for (Header header : request.getContent().getHeaders()) {
+				logger.trace("	> [" + request.hashCode() + "] " + header.getName() + ": " + header.getValue());
+			}
+		}
+	}
+	
+	private HTTPResponse finish(Socket socket, HTTPRequest request, URI uri, HTTPResponse response, Date timestamp, boolean reopenable) throws IOException {
+		if (contentCoding != null) {
+			HTTPResponse decoded = contentCoding.decode(response);
+			// the content is inflated as it is read
+			if (decoded != response) {
+				response = decoded;
+				reopenable = false;
+			}
+		}
+		// link to request
+		if (response instanceof DefaultHTTPResponse) {
+			((DefaultHTTPResponse) response).setRequest(request);
+		}
+		
+		// we back it with a dynamic resource provider
+		// this "should" be reopenable but...
+		// a streamed response can only be read once
+		if (reopenable) {
+			MimeUtils.setReopenable(response.getContent(), true);
+		}
+		
+		if (interceptor != null) {
+			interceptor.intercept(response);
+		}
+		// allow intercept of response
+		response = HTTPInterceptorManager.intercept(response);
+
+		logger.debug("< socket:" + socket.hashCode() + " [request:" + request.hashCode() + "] (" + (new Date().getTime() - timestamp.getTime()) + "ms) " + response.getCode() + ": " + response.getMessage());
+		if (logger.isTraceEnabled() && response.getContent() != null) {
+			for (Header header : response.getContent().getHeaders()) {
+				logger.trace("	< [" + request.hashCode() + "] " + header.getName() + ": " + header.getValue());
+			}
+		}
+		
+		// push the response into the cookiestore
+		if (cookieHandler != null && response.getContent() != null)
+			storeCookies(uri, response.getContent().getHeaders());
+		return response;
+	}
+	
+	private void executed(HTTPRequest request, HTTPResponse response, long started, long bytesSent, long bytesReceived) {
+		long latency = (System.nanoTime() - started) / 1000;
+		requestStatistics.executed(latency, bytesSent, bytesReceived);
+		if (requestListener != null) {
+			requestListener.executed(request, response, latency, bytesSent, bytesReceived);
+		}
+	}
+	
+	private void failed(HTTPRequest request, Exception exception, long started, long bytesSent, long bytesReceived) {
+		requestStatistics.failed(bytesSent, bytesReceived);
+		if (requestListener != null) {
+			requestListener.failed(request, exception, (System.nanoTime() - started) / 1000, bytesSent, bytesReceived);
+		}
+	}
+	
+	/**
+	 * The buffered streams live as long as the socket, this prevents reallocating the buffers for each request on a persistent connection
+	 * It also makes sure any data that was read ahead into the buffer is not lost for the next request
+	 */
+	private SocketStreams getStreams(Socket socket) throws IOException {
+		SocketStreams socketStreams = streams.get(socket);
+		if (socketStreams == null) {
+			socketStreams = new SocketStreams(socket);
+			streams.put(socket, socketStreams);
+		}
+		return socketStreams;
+	}
+	
+	/**
+	 * Drops the buffered streams of a socket, this must be called when the socket is closed or handed off to someone else
+	 */
+	public void forget(Socket socket) {
+		streams.remove(socket);
+	}
+	
 	private Map<String, List<String>> getHeadersAsMap(Header...headers) {
 		Map<String, List<String>> map = new HashMap<String, List<String>>();
 		for (Header header : headers) {
@@ -242,6 +573,18 @@ public class HTTPExecutor {
 		return cookieHandler;
 	}
 
+	public RequestMetrics getMetrics() {
+		return requestStatistics;
+	}
+	
+	public RequestListener getRequestListener() {
+		return requestListener;
+	}
+
+	public void setRequestListener(RequestListener requestListener) {
+		this.requestListener = requestListener;
+	}
+
 	public HTTPInterceptor getInterceptor() {
 		return interceptor;
 	}
@@ -257,5 +600,40 @@ public class HTTPExecutor {
 	public void setForceContentLength(boolean forceContentLength) {
 		this.forceContentLength = forceContentLength;
 	}
+
+	public ContentCoding getContentCoding() {
+		return contentCoding;
+	}
+
+	/**
+	 * Set to null (the default) to send and receive the content as is
+	 */
+	public void setContentCoding(ContentCoding contentCoding) {
+		this.contentCoding = contentCoding;
+	}
+	
+	private static class SocketStreams {
+		private SocketInputStream input;
+		private OutputStream output;
+		// these count the bytes that actually go over the wire
+		private CountingInputStream received;
+		private CountingOutputStream sent;
+		
+		public SocketStreams(Socket socket) throws IOException {
+			this.received = new CountingInputStream(socket.getInputStream());
+			this.sent = new CountingOutputStream(socket.getOutputStream());
+			this.input = new SocketInputStream(received);
+			this.output = new BufferedOutputStream(sent);
+		}
+	}
+	
+	private static class SocketInputStream extends BufferedInputStream {
+		public SocketInputStream(InputStream input) {
+			super(input);
+		}
+		public synchronized int getBuffered() {
+			return count - pos;
+		}
+	}
 	
 }
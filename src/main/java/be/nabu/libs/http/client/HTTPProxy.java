@@ -28,13 +28,11 @@ import javax.net.ssl.SSLContext;
 
 import be.nabu.libs.http.api.HTTPResponse;
 import be.nabu.libs.http.api.client.ClientAuthenticationHandler;
-import be.nabu.libs.http.api.client.ConnectionHandler;
 import be.nabu.libs.http.api.client.Proxy;
 import be.nabu.libs.http.client.connections.PlainConnectionHandler;
 import be.nabu.libs.http.core.CustomCookieStore;
 import be.nabu.libs.http.core.DefaultDynamicResourceProvider;
 import be.nabu.libs.http.core.DefaultHTTPRequest;
-import be.nabu.libs.http.core.HTTPUtils;
 import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.impl.FormatException;
 import be.nabu.utils.mime.impl.MimeHeader;
@@ -47,10 +45,16 @@ public class HTTPProxy implements Proxy {
 	private int port;
 	private HTTPExecutor httpExecutor;
 	private Principal principal;
-	private ConnectionHandler connectionHandler;
+	private PlainConnectionHandler connectionHandler;
 	private ClientAuthenticationHandler authenticationHandler;
 	private boolean secure = false;
 	
+	/**
+	 * The proxy challenge that was answered on the last successful CONNECT, the next CONNECT sends a fresh answer to it preemptively which avoids the 407 round trip
+	 * The answer is recalculated each time so schemes like digest keep counting their nonce, connection based schemes (e.g. NTLM) are never cached as their answer is only valid on one connection
+	 */
+	private volatile String preemptiveChallenge;
+	
 	public HTTPProxy(String host, int port, Principal principal, ClientAuthenticationHandler authenticationHandler, int connectionTimeout, int socketTimeout, SSLContext context) {
 		this.port = port;
 		this.host = host;
@@ -75,20 +79,36 @@ public class HTTPProxy implements Proxy {
 					)
 				);
 				
+				String challenge = preemptiveChallenge;
+				if (challenge != null && authenticationHandler != null) {
+					String answer = DefaultHTTPClient.forRequest(authenticationHandler, request).authenticate(principal, challenge);
+					if (answer != null) {
+						request.getContent().setHeader(new MimeHeader("Proxy-Authorization", answer));
+					}
+				}
 				HTTPResponse response = httpExecutor.execute(proxySocket, request, principal, secure, false);
 
 				int tries = 0;
+				// the cached challenge is no longer accepted
+				if (response.getCode() == 407) {
+					preemptiveChallenge = null;
+				}
+				// the challenge that the last authorization answered, it is cached if the proxy accepts the authorization
+				HTTPResponse answered = null;
+				Header sentAuthorization = null;
 				while(response.getCode() == 407 && authenticationHandler != null) {
 					Header proxyConnectionHeader = MimeUtils.getHeader("Proxy-Connection", response.getContent().getHeaders());
 					if (proxyConnectionHeader != null && proxyConnectionHeader.getValue().equalsIgnoreCase("close"))
 						proxySocket.close();
 					
 					if (proxySocket.isClosed()) {
-						connectionHandler.close(proxySocket);
+						close(proxySocket);
 						proxySocket = connectionHandler.connect(this.host, this.port, this.secure);
 					}
-					Header authenticationHeader = HTTPUtils.authenticateProxy(response, principal, authenticationHandler);
+					Header authenticationHeader = DefaultHTTPClient.authenticate(authenticationHandler, response, principal, request, true);
 					if (authenticationHeader != null) {
+						answered = response;
+						sentAuthorization = authenticationHeader;
 						request.getContent().removeHeader(authenticationHeader.getName());
 						request.getContent().setHeader(authenticationHeader);
 						response = httpExecutor.execute(proxySocket, request, principal, secure, false);
@@ -101,28 +121,51 @@ public class HTTPProxy implements Proxy {
 						break;
 				}
 				
-				if (response.getCode() != 200)
+				if (response.getCode() != 200) {
 					throw new IOException("After " + tries + " tries the proxy returned: " + response.getCode() + ": " + response.getMessage());
-				else
+				}
+				else {
+					if (answered != null) {
+						AuthenticationChallenge accepted = AuthenticationCache.getAnswered(AuthenticationChallenge.parse(MimeUtils.getHeaders("Proxy-Authenticate", answered.getContent().getHeaders())), sentAuthorization);
+						preemptiveChallenge = accepted == null ? null : accepted.toString();
+					}
+					// the tunnel is owned by the connection handler that asked for it (e.g. it is pooled there)
+					detach(proxySocket);
 					return proxySocket;
+				}
 			}
 			catch (ParseException e) {
-				connectionHandler.close(proxySocket);
+				close(proxySocket);
 				throw new IOException(e);
 			}
 			catch (FormatException e) {
-				connectionHandler.close(proxySocket);
+				close(proxySocket);
 				throw new IOException(e);
 			}
 			catch (IOException e) {
-				connectionHandler.close(proxySocket);
+				close(proxySocket);
 				throw e;
 			}
 		}
-		else
+		else {
+			detach(proxySocket);
 			return proxySocket;
+		}
 	}
 
+	private void close(Socket socket) throws IOException {
+		httpExecutor.forget(socket);
+		connectionHandler.close(socket);
+	}
+	
+	/**
+	 * The tunnel is handed to the connection handler that asked for it, we no longer track it
+	 */
+	private void detach(Socket socket) {
+		httpExecutor.forget(socket);
+		connectionHandler.detach(socket);
+	}
+	
 	@Override
 	public Principal getPrincipal() {
 		return principal;
@@ -0,0 +1,229 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates gzip or deflate (both zlib wrapped and raw) content as it is read
+ * The GZIPInputStream and InflaterInputStream of the JDK allocate a new inflater (with native zlib state) per stream, this borrows one from the content coding pool and gives it back as soon as the content is done
+ */
+class InflatingInputStream extends InputStream {
+
+	private PushbackInputStream input;
+	private boolean gzip, started, finished, closed;
+	private ContentCoding coding;
+	private Inflater inflater;
+	private Checksum checksum;
+	private byte [] buffer = new byte[8192];
+	private int bufferLength;
+	private byte [] single = new byte[1];
+	
+	InflatingInputStream(InputStream input, boolean gzip, ContentCoding coding) {
+		this.input = new PushbackInputStream(input, buffer.length);
+		this.gzip = gzip;
+		this.coding = coding;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int read = read(single, 0, 1);
+		return read <= 0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (closed) {
+			throw new IOException("The stream is closed");
+		}
+		if (!started) {
+			started = true;
+			inflater = coding.acquireInflater();
+			// an empty body (e.g. a HEAD request) can still have a content encoding
+			if (!readHeader()) {
+				finish();
+			}
+		}
+		if (length == 0) {
+			return 0;
+		}
+		while (!finished) {
+			int inflated;
+			try {
+				inflated = inflater.inflate(bytes, offset, length);
+			}
+			catch (DataFormatException e) {
+				throw new ZipException("Invalid compressed content: " + e.getMessage());
+			}
+			if (inflated > 0) {
+				if (checksum != null) {
+					checksum.update(bytes, offset, inflated);
+				}
+				return inflated;
+			}
+			else if (inflater.finished()) {
+				// whatever the inflater did not consume belongs to the trailer (or the next member)
+				if (inflater.getRemaining() > 0) {
+					input.unread(buffer, bufferLength - inflater.getRemaining(), inflater.getRemaining());
+				}
+				readTrailer();
+				// gzip allows multiple members to be concatenated
+				int next = gzip ? input.read() : -1;
+				if (next >= 0) {
+					input.unread(next);
+					inflater.reset();
+					readHeader();
+				}
+				else {
+					finish();
+				}
+			}
+			else if (inflater.needsDictionary()) {
+				throw new ZipException("Compressed content with a preset dictionary is not supported");
+			}
+			else if (inflater.needsInput()) {
+				bufferLength = input.read(buffer);
+				if (bufferLength < 0) {
+					throw new EOFException("Unexpected end of the compressed content");
+				}
+				inflater.setInput(buffer, 0, bufferLength);
+			}
+		}
+		return -1;
+	}
+	
+	private boolean readHeader() throws IOException {
+		int first = input.read();
+		if (first < 0) {
+			return false;
+		}
+		if (gzip) {
+			int second = readByte();
+			if (first != 0x1f || second != 0x8b) {
+				throw new ZipException("Not in gzip format");
+			}
+			if (readByte() != 8) {
+				throw new ZipException("Unsupported gzip compression method");
+			}
+			int flags = readByte();
+			// modification time, extra flags and operating system
+			skip(6);
+			// extra field
+			if ((flags & 4) != 0) {
+				skip(readByte() | (readByte() << 8));
+			}
+			// file name and comment
+			for (int flag : new int[] { 8, 16 }) {
+				if ((flags & flag) != 0) {
+					while (readByte() != 0) {
+						// skip
+					}
+				}
+			}
+			// header crc
+			if ((flags & 2) != 0) {
+				skip(2);
+			}
+			checksum = new CRC32();
+		}
+		else {
+			int second = readByte();
+			// the standard says zlib wrapped but some servers send raw deflate
+			if ((first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0) {
+				if ((second & 0x20) != 0) {
+					throw new ZipException("Compressed content with a preset dictionary is not supported");
+				}
+				checksum = new Adler32();
+			}
+			else {
+				input.unread(second);
+				input.unread(first);
+			}
+		}
+		return true;
+	}
+	
+	private void readTrailer() throws IOException {
+		if (checksum instanceof CRC32) {
+			long crc = readIntLittleEndian();
+			long size = readIntLittleEndian();
+			if (crc != checksum.getValue() || size != (inflater.getBytesWritten() & 0xffffffffL)) {
+				throw new ZipException("Corrupt gzip content: the checksum or size does not match");
+			}
+			checksum.reset();
+		}
+		else if (checksum instanceof Adler32) {
+			long adler = ((long) readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+			if (adler != checksum.getValue()) {
+				throw new ZipException("Corrupt deflate content: the checksum does not match");
+			}
+		}
+	}
+	
+	private long readIntLittleEndian() throws IOException {
+		return readByte() | (readByte() << 8) | (readByte() << 16) | ((long) readByte() << 24);
+	}
+	
+	private int readByte() throws IOException {
+		int read = input.read();
+		if (read < 0) {
+			throw new EOFException("Unexpected end of the compressed content");
+		}
+		return read;
+	}
+	
+	private void skip(int amount) throws IOException {
+		for (int i = 0; i < amount; i++) {
+			readByte();
+		}
+	}
+	
+	private void finish() throws IOException {
+		finished = true;
+		release();
+		// read up to the end of the original content, for a streamed response this makes sure the connection can be reused
+		while (input.read(buffer) >= 0) {
+			// skip
+		}
+	}
+	
+	private void release() {
+		if (inflater != null) {
+			coding.releaseInflater(inflater);
+			inflater = null;
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			release();
+			input.close();
+		}
+	}
+}
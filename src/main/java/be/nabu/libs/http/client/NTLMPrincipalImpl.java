@@ -62,4 +62,25 @@ public class NTLMPrincipalImpl implements NTLMPrincipal {
 		}
 	}
 
+	/**
+	 * Connections authenticated with NTLM are bound to the principal, so equal credentials have to be able to share them
+	 */
+	@Override
+	public boolean equals(Object object) {
+		if (!(object instanceof NTLMPrincipalImpl)) {
+			return false;
+		}
+		NTLMPrincipalImpl other = (NTLMPrincipalImpl) object;
+		return equals(domain, other.domain) && equals(name, other.name) && equals(password, other.password);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * (31 * (domain == null ? 0 : domain.hashCode()) + (name == null ? 0 : name.hashCode())) + (password == null ? 0 : password.hashCode());
+	}
+	
+	private static boolean equals(String first, String second) {
+		return first == null ? second == null : first.equals(second);
+	}
+
 }
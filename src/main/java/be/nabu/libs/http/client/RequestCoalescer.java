@@ -0,0 +1,239 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.security.Principal;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.client.cache.ResponseCache;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.libs.http.core.HTTPUtils;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.impl.FormatException;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+
+/**
+ * Identical safe requests that are executed at the same time share a single execution ("single flight"), the first one does the actual call and the others wait for its response
+ * Requests are identical if they have the same method, uri, headers and principal (compared with equals(), not just by name)
+ * If other callers joined, every caller gets its own reopenable copy of the response (so the content is kept in memory), otherwise the response is passed through as is
+ */
+public class RequestCoalescer {
+	
+	private static List<String> coalescableMethods = Arrays.asList(new String [] { "GET", "HEAD" });
+	
+	private ConcurrentHashMap<FlightKey, Flight> flights = new ConcurrentHashMap<FlightKey, Flight>();
+	private AtomicLong executions = new AtomicLong(), coalesced = new AtomicLong();
+	
+	public HTTPResponse execute(HTTPRequest request, Principal principal, boolean secure, ResponseCache.Origin origin) throws IOException, FormatException, ParseException {
+		if (!coalescableMethods.contains(request.getMethod().toUpperCase()) || request.getContent() instanceof ContentPart) {
+			return origin.execute(request);
+		}
+		FlightKey key = new FlightKey(getKey(request, secure), principal);
+		Flight flight = new Flight();
+		Flight existing = flights.putIfAbsent(key, flight);
+		while (existing != null) {
+			if (existing.join()) {
+				coalesced.incrementAndGet();
+				return existing.await(request);
+			}
+			// the response is already being passed through, start a new flight
+			flights.remove(key, existing);
+			existing = flights.putIfAbsent(key, flight);
+		}
+		executions.incrementAndGet();
+		try {
+			HTTPResponse response = origin.execute(request);
+			// nobody is waiting, there is no need to buffer the content
+			if (!flight.seal()) {
+				return response;
+			}
+			flight.complete(response);
+			return flight.copy(request);
+		}
+		catch (Throwable e) {
+			// anything that goes wrong (including errors) has to reach the followers, otherwise they would build a response from an empty flight
+			flight.failure = e;
+			throw e;
+		}
+		finally {
+			// new requests start a new flight from here on
+			flights.remove(key, flight);
+			flight.done.countDown();
+		}
+	}
+	
+	private static String getKey(HTTPRequest request, boolean secure) throws FormatException {
+		URI uri = HTTPUtils.getURI(request, secure);
+		StringBuilder builder = new StringBuilder();
+		builder.append(request.getMethod().toUpperCase()).append(" ").append(uri);
+		// we don't know up front which headers the server will vary on, so all of them have to match
+		Header [] headers = request.getContent() == null ? new Header[0] : request.getContent().getHeaders().clone();
+		Arrays.sort(headers, new Comparator<Header>() {
+			@Override
+			public int compare(Header first, Header second) {
+				return first.getName().compareToIgnoreCase(second.getName());
+			}
+		});
+		for (Header header : headers) {
+			builder.append("\n").append(header.getName().toLowerCase()).append(": ").append(MimeUtils.getFullHeaderValue(header));
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * The amount of requests that actually went to the server
+	 */
+	public long getExecutions() {
+		return executions.get();
+	}
+	
+	/**
+	 * The amount of requests that shared the response of another request
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+	
+	/**
+	 * The principal itself is part of the key, a caller with the same name but other credentials must not get the response of another
+	 */
+	private static class FlightKey {
+		private String request;
+		private Principal principal;
+		
+		public FlightKey(String request, Principal principal) {
+			this.request = request;
+			this.principal = principal;
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof FlightKey)) {
+				return false;
+			}
+			FlightKey other = (FlightKey) object;
+			return request.equals(other.request) && (principal == null ? other.principal == null : principal.equals(other.principal));
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * request.hashCode() + (principal == null ? 0 : principal.hashCode());
+		}
+	}
+	
+	private static class Flight {
+		private CountDownLatch done = new CountDownLatch(1);
+		private int code;
+		private String message;
+		private Header [] headers;
+		private byte [] content;
+		private volatile Throwable failure;
+		private int followers;
+		private boolean sealed;
+		
+		/**
+		 * Returns false if the flight no longer accepts followers
+		 */
+		public synchronized boolean join() {
+			if (sealed) {
+				return false;
+			}
+			followers++;
+			return true;
+		}
+		
+		/**
+		 * Stops accepting followers, returns whether anyone joined
+		 */
+		public synchronized boolean seal() {
+			sealed = true;
+			return followers > 0;
+		}
+		
+		public void complete(HTTPResponse response) throws IOException {
+			code = response.getCode();
+			message = response.getMessage();
+			ModifiablePart part = response.getContent();
+			headers = part == null ? null : part.getHeaders();
+			if (part instanceof ContentPart) {
+				ReadableContainer<ByteBuffer> readable = ((ContentPart) part).getReadable();
+				if (readable != null) {
+					try {
+						content = IOUtils.toBytes(readable);
+					}
+					finally {
+						readable.close();
+					}
+				}
+			}
+		}
+		
+		public HTTPResponse await(HTTPRequest request) throws IOException, FormatException, ParseException {
+			try {
+				done.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for an identical request");
+			}
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			else if (failure instanceof FormatException) {
+				throw (FormatException) failure;
+			}
+			else if (failure instanceof ParseException) {
+				throw (ParseException) failure;
+			}
+			else if (failure != null) {
+				throw new IOException("The shared request failed", failure);
+			}
+			return copy(request);
+		}
+		
+		public HTTPResponse copy(HTTPRequest request) {
+			ModifiablePart part = null;
+			if (content != null && content.length > 0) {
+				part = new PlainMimeContentPart(null, IOUtils.wrap(content, true), headers);
+				MimeUtils.setReopenable(part, true);
+			}
+			else if (headers != null) {
+				part = new PlainMimeEmptyPart(null, headers);
+			}
+			return new DefaultHTTPResponse(request, code, message, part);
+		}
+	}
+}
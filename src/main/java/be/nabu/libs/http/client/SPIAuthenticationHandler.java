@@ -19,17 +19,34 @@ package be.nabu.libs.http.client;
 
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
 
+import be.nabu.libs.http.api.HTTPRequest;
 import be.nabu.libs.http.api.client.ClientAuthenticationHandler;
 
 /**
- * Supports basic & digest
+ * Supports basic & digest and any other handler that is registered as a service
+ * The challenges are parsed once and each scheme is dispatched to the handler that supports it, the strongest challenge is answered first
  */
-public class SPIAuthenticationHandler implements ClientAuthenticationHandler {
+public class SPIAuthenticationHandler implements RequestAuthenticationHandler {
 
-	private List<ClientAuthenticationHandler> handlers;
+	private static final List<String> DIGEST_ALGORITHMS = Arrays.asList("sha-512-256", "sha-256", "md5");
+	
+	private volatile List<ClientAuthenticationHandler> handlers;
+	
+	/**
+	 * The handler that answered a scheme before, so a challenge does not have to be offered to every handler
+	 */
+	private Map<String, ClientAuthenticationHandler> schemes = new ConcurrentHashMap<String, ClientAuthenticationHandler>();
+	
+	private volatile List<String> preference = Arrays.asList("negotiate", "kerberos", "ntlm", "digest", "basic");
 
 	private List<ClientAuthenticationHandler> getHandlers() {
 		if (handlers == null) {
@@ -38,6 +55,13 @@ public class SPIAuthenticationHandler implements ClientAuthenticationHandler {
 					List<ClientAuthenticationHandler> handlers = new ArrayList<ClientAuthenticationHandler>();
 					for (ClientAuthenticationHandler handler : ServiceLoader.load(ClientAuthenticationHandler.class)) {
 						handlers.add(handler);
+						// the schemes of our own handlers are known up front
+						if (handler instanceof BasicAuthentication) {
+							schemes.putIfAbsent("basic", handler);
+						}
+						else if (handler instanceof DigestAuthentication) {
+							schemes.putIfAbsent("digest", handler);
+						}
 					}
 					this.handlers = handlers;
 				}
@@ -48,11 +72,100 @@ public class SPIAuthenticationHandler implements ClientAuthenticationHandler {
 
 	@Override
 	public String authenticate(Principal principal, String challenge) {
-		for (ClientAuthenticationHandler handler : getHandlers()) {
-			String response = handler.authenticate(principal, challenge);
-			if (response != null)
+		return authenticate(principal, challenge, null);
+	}
+	
+	@Override
+	public String authenticate(Principal principal, String challenge, HTTPRequest request) {
+		return challenge == null ? null : authenticate(principal, AuthenticationChallenge.parse(challenge), request);
+	}
+	
+	/**
+	 * Answers the strongest challenge (according to the preference) that one of the handlers supports
+	 */
+	public String authenticate(Principal principal, List<AuthenticationChallenge> challenges, HTTPRequest request) {
+		if (challenges.size() > 1) {
+			challenges = new ArrayList<AuthenticationChallenge>(challenges);
+			Collections.sort(challenges, new Comparator<AuthenticationChallenge>() {
+				@Override
+				public int compare(AuthenticationChallenge o1, AuthenticationChallenge o2) {
+					int result = getRank(o1.getScheme()) - getRank(o2.getScheme());
+					// digest challenges can be repeated with different algorithms, the strongest should be used (RFC 7616 section 3.7)
+					return result == 0 && o1.isScheme("digest") ? getAlgorithmRank(o1) - getAlgorithmRank(o2) : result;
+				}
+			});
+		}
+		for (AuthenticationChallenge challenge : challenges) {
+			String response = authenticate(principal, challenge, request);
+			if (response != null) {
 				return response;
+			}
 		}
 		return null;
 	}
+	
+	private String authenticate(Principal principal, AuthenticationChallenge challenge, HTTPRequest request) {
+		String scheme = challenge.getScheme().toLowerCase(Locale.ENGLISH);
+		// the handler that answered the scheme before is asked first
+		ClientAuthenticationHandler handler = schemes.get(scheme);
+		if (handler != null) {
+			String response = authenticate(handler, principal, challenge, request);
+			if (response != null) {
+				return response;
+			}
+		}
+		// it might not be able to answer this particular challenge (e.g. an unsupported algorithm) while another handler can
+		for (ClientAuthenticationHandler candidate : getHandlers()) {
+			if (candidate == handler) {
+				continue;
+			}
+			String response = authenticate(candidate, principal, challenge, request);
+			if (response != null) {
+				schemes.putIfAbsent(scheme, candidate);
+				return response;
+			}
+		}
+		return null;
+	}
+	
+	private static String authenticate(ClientAuthenticationHandler handler, Principal principal, AuthenticationChallenge challenge, HTTPRequest request) {
+		return handler instanceof RequestAuthenticationHandler && request != null
+			? ((RequestAuthenticationHandler) handler).authenticate(principal, challenge.toString(), request)
+			: handler.authenticate(principal, challenge.toString());
+	}
+	
+	private int getRank(String scheme) {
+		int index = preference.indexOf(scheme.toLowerCase(Locale.ENGLISH));
+		return index < 0 ? preference.size() : index;
+	}
+	
+	private static int getAlgorithmRank(AuthenticationChallenge challenge) {
+		String algorithm = challenge.getParameter("algorithm");
+		if (algorithm == null) {
+			return DIGEST_ALGORITHMS.size();
+		}
+		algorithm = algorithm.toLowerCase(Locale.ENGLISH);
+		if (algorithm.endsWith("-sess")) {
+			algorithm = algorithm.substring(0, algorithm.length() - "-sess".length());
+		}
+		int index = DIGEST_ALGORITHMS.indexOf(algorithm);
+		return index < 0 ? DIGEST_ALGORITHMS.size() : index;
+	}
+
+	public List<String> getPreference() {
+		return preference;
+	}
+
+	/**
+	 * The schemes from strongest to weakest, when a server offers multiple challenges the first supported one in this order is answered
+	 * Schemes that are not in the list come last, in the order the server sent them
+	 */
+	public SPIAuthenticationHandler setPreference(String...schemes) {
+		List<String> preference = new ArrayList<String>();
+		for (String scheme : schemes) {
+			preference.add(scheme.toLowerCase(Locale.ENGLISH));
+		}
+		this.preference = preference;
+		return this;
+	}
 }
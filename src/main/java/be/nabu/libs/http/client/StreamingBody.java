@@ -0,0 +1,161 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * A response body that is read directly from the connection
+ * The listener is notified once when the body is done: either it was read completely or it was closed (or broke) before that
+ * Closing the body does not close the underlying connection, that is up to the listener
+ */
+public class StreamingBody implements ReadableContainer<ByteBuffer> {
+
+	public interface Listener {
+		public void done(boolean complete);
+	}
+	
+	/**
+	 * Writes the (remaining) content straight from the connection to a file
+	 */
+	public interface DirectSource {
+		public long transferTo(FileChannel target, long position, long length) throws IOException;
+	}
+	
+	private ReadableContainer<ByteBuffer> parent;
+	private Listener listener;
+	private boolean done, complete, started;
+	private DirectSource directSource;
+	private long length;
+	
+	public StreamingBody(ReadableContainer<ByteBuffer> parent) {
+		this.parent = parent;
+	}
+	
+	@Override
+	public long read(ByteBuffer target) throws IOException {
+		if (isDone()) {
+			if (!complete) {
+				throw new IOException("The response body has been closed");
+			}
+			return -1;
+		}
+		long read;
+		try {
+			started = true;
+			read = parent.read(target);
+		}
+		catch (IOException e) {
+			finish(false);
+			throw e;
+		}
+		if (read < 0) {
+			finish(true);
+		}
+		return read;
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish(false);
+	}
+	
+	/**
+	 * Writes the content to the current position of the file, if possible this happens without copying the content through the heap (FileChannel.transferFrom)
+	 */
+	public long transferTo(FileChannel target) throws IOException {
+		if (directSource != null && !started && !isDone()) {
+			started = true;
+			long position = target.position();
+			long transferred;
+			try {
+				transferred = directSource.transferTo(target, position, length);
+			}
+			catch (IOException e) {
+				finish(false);
+				throw e;
+			}
+			target.position(position + transferred);
+			finish(true);
+			return transferred;
+		}
+		InputStream input = IOUtils.toInputStream(this);
+		byte [] buffer = new byte[65536];
+		long transferred = 0;
+		int read;
+		while ((read = input.read(buffer)) >= 0) {
+			java.nio.ByteBuffer wrapped = java.nio.ByteBuffer.wrap(buffer, 0, read);
+			while (wrapped.hasRemaining()) {
+				target.write(wrapped);
+			}
+			transferred += read;
+		}
+		return transferred;
+	}
+	
+	/**
+	 * Only set if the content can be read from the connection as is (fixed length, no transfer or content encoding)
+	 */
+	void setDirectSource(DirectSource directSource, long length) {
+		this.directSource = directSource;
+		this.length = length;
+	}
+	
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+	
+	/**
+	 * If the body is already done, the listener is called immediately
+	 */
+	public void setListener(Listener listener) {
+		boolean notify;
+		synchronized(this) {
+			this.listener = listener;
+			notify = done;
+		}
+		if (notify) {
+			listener.done(complete);
+		}
+	}
+	
+	private void finish(boolean complete) {
+		Listener listener;
+		synchronized(this) {
+			if (done) {
+				return;
+			}
+			done = true;
+			this.complete = complete;
+			listener = this.listener;
+		}
+		if (listener != null) {
+			listener.done(complete);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client;
+
+import java.io.IOException;
+
+import be.nabu.libs.resources.api.DynamicResourceProvider;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Instead of copying the content to memory or disk, the parser gets a resource that reads straight from the connection
+ * A new provider should be used for each request as it keeps track of the last body it created
+ */
+public class StreamingResourceProvider implements DynamicResourceProvider {
+
+	private StreamingBody body;
+	
+	@Override
+	public Resource createDynamicResource(ReadableContainer<ByteBuffer> content, String name, String contentType, boolean shouldClose) throws IOException {
+		body = new StreamingBody(content);
+		return new StreamingResource(name, contentType, body);
+	}
+	
+	public StreamingBody getBody() {
+		return body;
+	}
+	
+	/**
+	 * Returns the body that was created for the last parsed response (if it had one) and forgets about it
+	 */
+	public StreamingBody takeBody() {
+		StreamingBody body = this.body;
+		this.body = null;
+		return body;
+	}
+
+	private static class StreamingResource implements ReadableResource {
+		private String name, contentType;
+		private StreamingBody body;
+		
+		public StreamingResource(String name, String contentType, StreamingBody body) {
+			this.name = name;
+			this.contentType = contentType;
+			this.body = body;
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public ResourceContainer<?> getParent() {
+			return null;
+		}
+
+		// the body can only be read once
+		@Override
+		public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+			return body;
+		}
+	}
+}
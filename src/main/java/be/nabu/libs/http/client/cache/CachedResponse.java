@@ -0,0 +1,278 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.cache;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeUtils;
+
+/**
+ * A stored response, the content is either in memory or in a (dynamic) resource
+ * The age and freshness are calculated as described in RFC 9111 (section 4.2)
+ */
+public class CachedResponse {
+
+	// the status codes that are cacheable without explicit freshness information (RFC 9110, section 15.1)
+	private static final int [] HEURISTICALLY_CACHEABLE = new int [] { 200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501 };
+	// heuristic freshness is capped
+	private static final long MAX_HEURISTIC_FRESHNESS = 24 * 60 * 60 * 1000;
+	
+	private int code;
+	private String message;
+	private Header [] headers;
+	private byte [] content;
+	private ReadableResource resource;
+	private long size;
+	private Map<String, String> varyValues;
+	private long requestTime, responseTime;
+	private Map<String, String> directives;
+	// the principal the response was retrieved for
+	private Principal principal;
+	
+	public CachedResponse(int code, String message, Header [] headers, byte [] content, Map<String, String> varyValues, long requestTime, long responseTime) {
+		this.code = code;
+		this.message = message;
+		this.headers = headers;
+		this.content = content;
+		this.size = content == null ? 0 : content.length;
+		this.varyValues = varyValues;
+		this.requestTime = requestTime;
+		this.responseTime = responseTime;
+		this.directives = getDirectives(headers);
+	}
+	
+	private CachedResponse(CachedResponse original, Header [] headers, long requestTime, long responseTime) {
+		this(original.code, original.message, headers, original.content, original.varyValues, requestTime, responseTime);
+		this.resource = original.resource;
+		this.size = original.size;
+		this.principal = original.principal;
+	}
+	
+	/**
+	 * The headers of a 304 replace the stored ones (RFC 9111, section 4.3.4)
+	 */
+	public CachedResponse update(Header [] notModifiedHeaders, long requestTime, long responseTime) {
+		List<Header> updated = new ArrayList<Header>();
+		for (Header header : headers) {
+			if (MimeUtils.getHeader(header.getName(), notModifiedHeaders) == null) {
+				updated.add(header);
+			}
+		}
+		for (Header header : notModifiedHeaders) {
+			if (!header.getName().equalsIgnoreCase("Content-Length")) {
+				updated.add(header);
+			}
+		}
+		return new CachedResponse(this, updated.toArray(new Header[updated.size()]), requestTime, responseTime);
+	}
+	
+	/**
+	 * Moves the content to a resource
+	 */
+	public CachedResponse spill(ReadableResource resource) {
+		CachedResponse spilled = new CachedResponse(this, headers, requestTime, responseTime);
+		spilled.content = null;
+		spilled.resource = resource;
+		return spilled;
+	}
+	
+	public byte [] getContent() throws IOException {
+		if (content != null || resource == null) {
+			return content;
+		}
+		ReadableContainer<ByteBuffer> readable = resource.getReadable();
+		try {
+			return IOUtils.toBytes(readable);
+		}
+		finally {
+			readable.close();
+		}
+	}
+	
+	public boolean isInMemory() {
+		return resource == null;
+	}
+	
+	public Principal getPrincipal() {
+		return principal;
+	}
+	public CachedResponse setPrincipal(Principal principal) {
+		this.principal = principal;
+		return this;
+	}
+	
+	/**
+	 * A response is only served to the principal it was retrieved for, the principals are compared with equals() so a principal with the same name but other credentials does not match
+	 */
+	public boolean isFor(Principal principal) {
+		return this.principal == null ? principal == null : this.principal.equals(principal);
+	}
+	
+	ReadableResource getResource() {
+		return resource;
+	}
+	
+	public long getAge(long now) {
+		long date = getDate(headers, responseTime);
+		long apparentAge = Math.max(0, responseTime - date);
+		long ageValue = 0;
+		Header age = MimeUtils.getHeader("Age", headers);
+		if (age != null) {
+			try {
+				ageValue = Long.parseLong(age.getValue().trim()) * 1000;
+			}
+			catch (NumberFormatException e) {
+				// ignore
+			}
+		}
+		long correctedInitialAge = Math.max(apparentAge, ageValue + (responseTime - requestTime));
+		return correctedInitialAge + (now - responseTime);
+	}
+	
+	public long getFreshnessLifetime() {
+		Long maxAge = getSeconds(directives, "max-age");
+		if (maxAge != null) {
+			return maxAge * 1000;
+		}
+		Long expires = getDate(MimeUtils.getHeader("Expires", headers));
+		if (expires != null) {
+			return Math.max(0, expires - getDate(headers, responseTime));
+		}
+		else if (MimeUtils.getHeader("Expires", headers) != null) {
+			// an invalid expires (e.g. "0") means already expired
+			return 0;
+		}
+		Long lastModified = getDate(MimeUtils.getHeader("Last-Modified", headers));
+		if (lastModified != null && isHeuristicallyCacheable(code)) {
+			return Math.min(MAX_HEURISTIC_FRESHNESS, Math.max(0, (getDate(headers, responseTime) - lastModified) / 10));
+		}
+		return 0;
+	}
+	
+	public boolean hasExplicitFreshness() {
+		return directives.containsKey("max-age") || MimeUtils.getHeader("Expires", headers) != null;
+	}
+	
+	public boolean hasValidators() {
+		return MimeUtils.getHeader("ETag", headers) != null || MimeUtils.getHeader("Last-Modified", headers) != null;
+	}
+	
+	public boolean matches(Map<String, String> varyValues) {
+		return this.varyValues == null ? varyValues == null : this.varyValues.equals(varyValues);
+	}
+	
+	public int getCode() {
+		return code;
+	}
+	public String getMessage() {
+		return message;
+	}
+	public Header[] getHeaders() {
+		return headers;
+	}
+	public long getSize() {
+		return size;
+	}
+	public Map<String, String> getDirectives() {
+		return directives;
+	}
+	public long getResponseTime() {
+		return responseTime;
+	}
+
+	public static boolean isHeuristicallyCacheable(int code) {
+		for (int cacheable : HEURISTICALLY_CACHEABLE) {
+			if (cacheable == code) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Parses all the Cache-Control headers into their directives, the names are lower case and quotes are removed from the values
+	 */
+	public static Map<String, String> getDirectives(Header...headers) {
+		Map<String, String> directives = new HashMap<String, String>();
+		Header [] cacheControl = MimeUtils.getHeaders("Cache-Control", headers);
+		if (cacheControl != null) {
+			for (Header header : cacheControl) {
+				for (String directive : MimeUtils.getFullHeaderValue(header).split(",")) {
+					directive = directive.trim();
+					if (directive.isEmpty()) {
+						continue;
+					}
+					int index = directive.indexOf('=');
+					String name = (index < 0 ? directive : directive.substring(0, index)).trim().toLowerCase();
+					String value = index < 0 ? null : directive.substring(index + 1).trim().replaceAll("^\"|\"$", "");
+					directives.put(name, value);
+				}
+			}
+		}
+		return directives;
+	}
+	
+	public static Long getSeconds(Map<String, String> directives, String name) {
+		String value = directives.get(name);
+		if (value != null) {
+			try {
+				return Math.max(0, Long.parseLong(value));
+			}
+			catch (NumberFormatException e) {
+				// ignore
+			}
+		}
+		return null;
+	}
+	
+	private static long getDate(Header [] headers, long defaultValue) {
+		Long date = getDate(MimeUtils.getHeader("Date", headers));
+		return date == null ? defaultValue : date;
+	}
+	
+	private static Long getDate(Header header) {
+		if (header == null) {
+			return null;
+		}
+		try {
+			return newDateFormatter().parse(MimeUtils.getFullHeaderValue(header).trim()).getTime();
+		}
+		catch (java.text.ParseException e) {
+			return null;
+		}
+	}
+	
+	private static SimpleDateFormat newDateFormatter() {
+		SimpleDateFormat formatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return formatter;
+	}
+}
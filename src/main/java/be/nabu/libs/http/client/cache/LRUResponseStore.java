@@ -0,0 +1,220 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.resources.api.DynamicResourceProvider;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeUtils;
+
+/**
+ * Keeps the most recently used responses in memory up to the given size
+ * If a dynamic resource provider is set, the responses that no longer fit in memory are moved to a second tier (e.g. on disk) that is bounded as well
+ */
+public class LRUResponseStore implements ResponseStore {
+
+	private long maxMemorySize, maxSecondarySize;
+	private DynamicResourceProvider secondaryProvider;
+	
+	private Map<String, CachedResponse> memory = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+	private Map<String, CachedResponse> secondary = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+	private long memorySize, secondarySize;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	public LRUResponseStore(long maxMemorySize) {
+		this(maxMemorySize, null, 0);
+	}
+	
+	public LRUResponseStore(long maxMemorySize, DynamicResourceProvider secondaryProvider, long maxSecondarySize) {
+		this.maxMemorySize = maxMemorySize;
+		this.secondaryProvider = secondaryProvider;
+		this.maxSecondarySize = maxSecondarySize;
+	}
+	
+	@Override
+	public synchronized CachedResponse get(String key) {
+		CachedResponse response = memory.get(key);
+		return response == null ? secondary.get(key) : response;
+	}
+
+	/**
+	 * Moving entries to the secondary tier and deleting the resources of discarded entries is done outside of the lock
+	 */
+	@Override
+	public void put(String key, CachedResponse response) {
+		Map<String, CachedResponse> toSpill = new LinkedHashMap<String, CachedResponse>();
+		List<CachedResponse> discarded = new ArrayList<CachedResponse>();
+		synchronized(this) {
+			discard(key, discarded);
+			if (!response.isInMemory()) {
+				putSecondary(key, response, discarded);
+			}
+			else {
+				memory.put(key, response);
+				memorySize += response.getSize();
+				Iterator<Map.Entry<String, CachedResponse>> iterator = memory.entrySet().iterator();
+				while (memorySize > maxMemorySize && iterator.hasNext()) {
+					Map.Entry<String, CachedResponse> eldest = iterator.next();
+					iterator.remove();
+					memorySize -= eldest.getValue().getSize();
+					if (secondaryProvider != null && eldest.getValue().getSize() <= maxSecondarySize) {
+						toSpill.put(eldest.getKey(), eldest.getValue());
+					}
+				}
+			}
+		}
+		for (Map.Entry<String, CachedResponse> entry : toSpill.entrySet()) {
+			CachedResponse spilled = spill(entry.getKey(), entry.getValue());
+			if (spilled != null) {
+				synchronized(this) {
+					// a newer response was stored in the mean time
+					if (memory.containsKey(entry.getKey()) || secondary.containsKey(entry.getKey())) {
+						discarded.add(spilled);
+					}
+					else {
+						putSecondary(entry.getKey(), spilled, discarded);
+					}
+				}
+			}
+		}
+		for (CachedResponse entry : discarded) {
+			// an updated entry (e.g. after a 304) shares the resource of the one it replaces
+			if (entry.getResource() != null && entry.getResource() != response.getResource()) {
+				delete(entry.getResource());
+			}
+		}
+	}
+	
+	private CachedResponse spill(String key, CachedResponse response) {
+		try {
+			byte [] content = response.getContent();
+			// there is nothing to move, it only takes up the space of its headers
+			if (content == null || content.length == 0) {
+				return response;
+			}
+			Header contentType = MimeUtils.getHeader("Content-Type", response.getHeaders());
+			Resource resource = secondaryProvider.createDynamicResource(IOUtils.wrap(content, true), "cached-response", contentType == null ? "application/octet-stream" : contentType.getValue(), true);
+			if (resource instanceof ReadableResource) {
+				return response.spill((ReadableResource) resource);
+			}
+			else if (resource != null) {
+				delete(resource);
+			}
+		}
+		catch (IOException e) {
+			logger.warn("Could not move cached response " + key + " to the secondary store", e);
+		}
+		return null;
+	}
+	
+	private void putSecondary(String key, CachedResponse response, List<CachedResponse> discarded) {
+		secondary.put(key, response);
+		secondarySize += response.getSize();
+		Iterator<Map.Entry<String, CachedResponse>> iterator = secondary.entrySet().iterator();
+		while (secondarySize > maxSecondarySize && iterator.hasNext()) {
+			CachedResponse eldest = iterator.next().getValue();
+			secondarySize -= eldest.getSize();
+			iterator.remove();
+			discarded.add(eldest);
+		}
+	}
+	
+	private void discard(String key, List<CachedResponse> discarded) {
+		CachedResponse removed = memory.remove(key);
+		if (removed != null) {
+			memorySize -= removed.getSize();
+		}
+		removed = secondary.remove(key);
+		if (removed != null) {
+			secondarySize -= removed.getSize();
+			discarded.add(removed);
+		}
+	}
+	
+	/**
+	 * The resources created by the provider (e.g. temporary files) are deleted from their parent and closed if possible
+	 */
+	private void delete(Resource resource) {
+		try {
+			if (resource.getParent() instanceof ManageableContainer) {
+				((ManageableContainer<?>) resource.getParent()).delete(resource.getName());
+			}
+			if (resource instanceof Closeable) {
+				((Closeable) resource).close();
+			}
+		}
+		catch (IOException e) {
+			logger.warn("Could not delete the secondary resource " + resource.getName(), e);
+		}
+	}
+
+	@Override
+	public void remove(String key) {
+		List<CachedResponse> discarded = new ArrayList<CachedResponse>();
+		synchronized(this) {
+			discard(key, discarded);
+		}
+		for (CachedResponse entry : discarded) {
+			if (entry.getResource() != null) {
+				delete(entry.getResource());
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		List<CachedResponse> discarded;
+		synchronized(this) {
+			discarded = new ArrayList<CachedResponse>(secondary.values());
+			memory.clear();
+			secondary.clear();
+			memorySize = 0;
+			secondarySize = 0;
+		}
+		for (CachedResponse entry : discarded) {
+			if (entry.getResource() != null) {
+				delete(entry.getResource());
+			}
+		}
+	}
+
+	@Override
+	public synchronized int getEntries() {
+		return memory.size() + secondary.size();
+	}
+
+	@Override
+	public synchronized long getSize() {
+		return memorySize + secondarySize;
+	}
+}
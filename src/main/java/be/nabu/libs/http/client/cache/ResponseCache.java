@@ -0,0 +1,375 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.security.Principal;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.client.metrics.ResponseCacheMetrics;
+import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.libs.http.core.HTTPUtils;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.api.ModifiablePart;
+import be.nabu.utils.mime.impl.FormatException;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+
+/**
+ * A private (per client) HTTP cache as described in RFC 9111
+ * Responses to GET and HEAD requests are stored if they have explicit freshness information or validators, fresh responses are served without contacting the server
+ * Stale responses are revalidated with a conditional request (If-None-Match/If-Modified-Since), if the response allows stale-while-revalidate it is served immediately while the revalidation happens in the background
+ * Successful unsafe requests (e.g. POST) invalidate the stored responses for their target
+ * Because it is a private cache, responses marked "private" are stored as well, a stored response is only served to a principal that equals the one it was retrieved for
+ */
+public class ResponseCache implements ResponseCacheMetrics {
+
+	/**
+	 * The actual execution of a request (including redirects, authentication,...)
+	 */
+	public interface Origin {
+		public HTTPResponse execute(HTTPRequest request) throws IOException, FormatException, ParseException;
+	}
+	
+	private static List<String> cacheableMethods = Arrays.asList(new String [] { "GET", "HEAD" });
+	private static List<String> safeMethods = Arrays.asList(new String [] { "GET", "HEAD", "OPTIONS", "TRACE" });
+	
+	private ResponseStore store;
+	private Executor executor;
+	// responses with larger content are not stored
+	private long maxEntrySize = 1024 * 1024;
+	
+	private Set<String> revalidating = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private AtomicLong hits = new AtomicLong(), staleHits = new AtomicLong(), misses = new AtomicLong(), revalidations = new AtomicLong(), notModified = new AtomicLong(), stores = new AtomicLong();
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	public ResponseCache(ResponseStore store) {
+		this.store = store;
+	}
+	
+	/**
+	 * The executor is used for the background revalidations, without one stale-while-revalidate is not applied
+	 */
+	public ResponseCache(ResponseStore store, Executor executor) {
+		this.store = store;
+		this.executor = executor;
+	}
+	
+	public HTTPResponse execute(HTTPRequest request, Principal principal, boolean secure, Origin origin) throws IOException, FormatException, ParseException {
+		String method = request.getMethod().toUpperCase();
+		URI uri = HTTPUtils.getURI(request, secure);
+		if (!cacheableMethods.contains(method)) {
+			HTTPResponse response = origin.execute(request);
+			// an unsafe request that succeeded invalidates the stored responses (RFC 9111, section 4.4)
+			if (!safeMethods.contains(method) && response.getCode() >= 200 && response.getCode() < 400) {
+				for (String cacheableMethod : cacheableMethods) {
+					store.remove(getKey(cacheableMethod, uri, principal));
+				}
+			}
+			return response;
+		}
+		Map<String, String> requestDirectives = request.getContent() == null ? Collections.<String, String>emptyMap() : CachedResponse.getDirectives(request.getContent().getHeaders());
+		if (requestDirectives.containsKey("no-store")) {
+			misses.incrementAndGet();
+			return origin.execute(request);
+		}
+		String key = getKey(method, uri, principal);
+		CachedResponse cached = store.get(key);
+		if (cached != null && (!cached.isFor(principal) || !cached.matches(getVaryValues(request, cached.getHeaders())))) {
+			cached = null;
+		}
+		if (cached == null) {
+			misses.incrementAndGet();
+			long requestTime = System.currentTimeMillis();
+			HTTPResponse response = origin.execute(request);
+			return store(request, principal, key, response, requestTime, System.currentTimeMillis());
+		}
+		long now = System.currentTimeMillis();
+		long age = cached.getAge(now);
+		long freshness = cached.getFreshnessLifetime();
+		Map<String, String> responseDirectives = cached.getDirectives();
+		boolean noCache = requestDirectives.containsKey("no-cache") || responseDirectives.containsKey("no-cache") || isPragmaNoCache(request);
+		Long maxAge = CachedResponse.getSeconds(requestDirectives, "max-age");
+		Long minFresh = CachedResponse.getSeconds(requestDirectives, "min-fresh");
+		if (!noCache && age + (minFresh == null ? 0 : minFresh * 1000) < freshness && (maxAge == null || age <= maxAge * 1000)) {
+			hits.incrementAndGet();
+			return toResponse(request, cached, age);
+		}
+		Long staleWhileRevalidate = CachedResponse.getSeconds(responseDirectives, "stale-while-revalidate");
+		if (!noCache && executor != null && staleWhileRevalidate != null && age < freshness + staleWhileRevalidate * 1000 && !responseDirectives.containsKey("must-revalidate")) {
+			staleHits.incrementAndGet();
+			revalidateInBackground(request, key, cached, origin);
+			return toResponse(request, cached, age);
+		}
+		return revalidate(request, key, cached, origin);
+	}
+	
+	private void revalidateInBackground(HTTPRequest request, final String key, final CachedResponse cached, final Origin origin) {
+		// one revalidation per response is enough
+		if (!revalidating.add(key)) {
+			return;
+		}
+		final HTTPRequest copy = new DefaultHTTPRequest(request.getMethod(), request.getTarget(), new PlainMimeEmptyPart(null, request.getContent().getHeaders()), request.getVersion());
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						HTTPResponse response = revalidate(copy, key, cached, origin);
+						// make sure the content is read so the connection can be reused
+						if (response.getContent() instanceof ContentPart) {
+							ReadableContainer<ByteBuffer> readable = ((ContentPart) response.getContent()).getReadable();
+							if (readable != null) {
+								readable.close();
+							}
+						}
+					}
+					catch (Exception e) {
+						logger.debug("Could not revalidate cached response " + key, e);
+					}
+					finally {
+						revalidating.remove(key);
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			revalidating.remove(key);
+			logger.debug("Could not schedule the revalidation of cached response " + key, e);
+		}
+	}
+	
+	private HTTPResponse revalidate(HTTPRequest request, String key, CachedResponse cached, Origin origin) throws IOException, FormatException, ParseException {
+		HTTPRequest conditional = request;
+		if (cached.hasValidators()) {
+			revalidations.incrementAndGet();
+			List<Header> headers = new ArrayList<Header>(Arrays.asList(request.getContent().getHeaders()));
+			Header etag = MimeUtils.getHeader("ETag", cached.getHeaders());
+			Header lastModified = MimeUtils.getHeader("Last-Modified", cached.getHeaders());
+			if (etag != null && MimeUtils.getHeader("If-None-Match", request.getContent().getHeaders()) == null) {
+				headers.add(new MimeHeader("If-None-Match", MimeUtils.getFullHeaderValue(etag)));
+			}
+			if (lastModified != null && MimeUtils.getHeader("If-Modified-Since", request.getContent().getHeaders()) == null) {
+				headers.add(new MimeHeader("If-Modified-Since", MimeUtils.getFullHeaderValue(lastModified)));
+			}
+			conditional = new DefaultHTTPRequest(request.getMethod(), request.getTarget(), new PlainMimeEmptyPart(null, headers.toArray(new Header[headers.size()])), request.getVersion());
+		}
+		else {
+			misses.incrementAndGet();
+		}
+		long requestTime = System.currentTimeMillis();
+		HTTPResponse response = origin.execute(conditional);
+		long responseTime = System.currentTimeMillis();
+		if (response.getCode() == 304 && conditional != request) {
+			notModified.incrementAndGet();
+			CachedResponse updated = cached.update(response.getContent() == null ? new Header[0] : response.getContent().getHeaders(), requestTime, responseTime);
+			store.put(key, updated);
+			return toResponse(request, updated, updated.getAge(responseTime));
+		}
+		// the stored response was retrieved for the same principal
+		return store(request, cached.getPrincipal(), key, response, requestTime, responseTime);
+	}
+	
+	private HTTPResponse store(HTTPRequest request, Principal principal, String key, HTTPResponse response, long requestTime, long responseTime) throws IOException {
+		ModifiablePart content = response.getContent();
+		if (content == null || !isStorable(request, response)) {
+			return response;
+		}
+		Long contentLength = MimeUtils.getContentLength(content.getHeaders());
+		if (contentLength != null && contentLength > maxEntrySize) {
+			return response;
+		}
+		Map<String, String> varyValues = getVaryValues(request, content.getHeaders());
+		// the freshness and validators only depend on the headers, there is no point in reading content that will not be stored
+		CachedResponse headersOnly = new CachedResponse(response.getCode(), response.getMessage(), content.getHeaders(), new byte[0], varyValues, requestTime, responseTime);
+		if (!headersOnly.hasExplicitFreshness() && !headersOnly.hasValidators()) {
+			return response;
+		}
+		byte [] bytes = new byte[0];
+		if (content instanceof ContentPart) {
+			ReadableContainer<ByteBuffer> readable = ((ContentPart) content).getReadable();
+			if (readable != null) {
+				InputStream input = IOUtils.toInputStream(readable);
+				boolean passThrough = false;
+				try {
+					// never read more than one byte beyond the limit, the size is not always known up front (e.g. chunked)
+					ByteArrayOutputStream output = new ByteArrayOutputStream();
+					byte [] buffer = new byte[8192];
+					int read;
+					while (output.size() <= maxEntrySize && (read = input.read(buffer, 0, (int) Math.min(buffer.length - 1, maxEntrySize - output.size()) + 1)) > 0) {
+						output.write(buffer, 0, read);
+					}
+					bytes = output.toByteArray();
+					if (bytes.length > maxEntrySize) {
+						// too large to store, pass it through with what was already read followed by the rest of the stream
+						passThrough = true;
+						InputStream remainder = new SequenceInputStream(new ByteArrayInputStream(bytes), input);
+						return new DefaultHTTPResponse(request, response.getCode(), response.getMessage(), new PlainMimeContentPart(null, IOUtils.wrap(remainder), content.getHeaders()));
+					}
+				}
+				finally {
+					if (!passThrough) {
+						readable.close();
+					}
+				}
+			}
+		}
+		CachedResponse cached = new CachedResponse(response.getCode(), response.getMessage(), content.getHeaders(), bytes, varyValues, requestTime, responseTime).setPrincipal(principal);
+		stores.incrementAndGet();
+		store.put(key, cached);
+		// the content has been consumed, return a copy that is backed by the bytes
+		return toResponse(request, cached, 0);
+	}
+	
+	private boolean isStorable(HTTPRequest request, HTTPResponse response) {
+		Header [] headers = response.getContent().getHeaders();
+		Map<String, String> directives = CachedResponse.getDirectives(headers);
+		Header vary = MimeUtils.getHeader("Vary", headers);
+		if (directives.containsKey("no-store") || (vary != null && MimeUtils.getFullHeaderValue(vary).trim().equals("*"))) {
+			return false;
+		}
+		// partial content is not supported
+		if (response.getCode() == 206 || MimeUtils.getHeader("Content-Range", headers) != null) {
+			return false;
+		}
+		return CachedResponse.isHeuristicallyCacheable(response.getCode()) || directives.containsKey("max-age") || directives.containsKey("public") || MimeUtils.getHeader("Expires", headers) != null;
+	}
+	
+	private static Map<String, String> getVaryValues(HTTPRequest request, Header [] responseHeaders) {
+		Header vary = MimeUtils.getHeader("Vary", responseHeaders);
+		if (vary == null) {
+			return null;
+		}
+		Map<String, String> values = new TreeMap<String, String>();
+		for (String name : MimeUtils.getFullHeaderValue(vary).split(",")) {
+			name = name.trim().toLowerCase();
+			if (!name.isEmpty()) {
+				Header header = request.getContent() == null ? null : MimeUtils.getHeader(name, request.getContent().getHeaders());
+				values.put(name, header == null ? "" : MimeUtils.getFullHeaderValue(header));
+			}
+		}
+		return values;
+	}
+	
+	private static boolean isPragmaNoCache(HTTPRequest request) {
+		Header pragma = request.getContent() == null ? null : MimeUtils.getHeader("Pragma", request.getContent().getHeaders());
+		return pragma != null && MimeUtils.getFullHeaderValue(pragma).toLowerCase().contains("no-cache");
+	}
+	
+	private static HTTPResponse toResponse(HTTPRequest request, CachedResponse cached, long age) throws IOException {
+		List<Header> headers = new ArrayList<Header>();
+		for (Header header : cached.getHeaders()) {
+			if (!header.getName().equalsIgnoreCase("Age")) {
+				headers.add(header);
+			}
+		}
+		headers.add(new MimeHeader("Age", Long.toString(age / 1000)));
+		Header [] array = headers.toArray(new Header[headers.size()]);
+		byte [] content = cached.getContent();
+		ModifiablePart part;
+		if (content == null || content.length == 0) {
+			part = new PlainMimeEmptyPart(null, array);
+		}
+		else {
+			part = new PlainMimeContentPart(null, IOUtils.wrap(content, true), array);
+			MimeUtils.setReopenable(part, true);
+		}
+		return new DefaultHTTPResponse(request, cached.getCode(), cached.getMessage(), part);
+	}
+	
+	private static String getKey(String method, URI uri, Principal principal) {
+		return method + " " + uri + (principal == null ? "" : " " + principal.getName());
+	}
+	
+	public void clear() {
+		store.clear();
+	}
+	
+	public ResponseStore getStore() {
+		return store;
+	}
+
+	public long getMaxEntrySize() {
+		return maxEntrySize;
+	}
+	public ResponseCache setMaxEntrySize(long maxEntrySize) {
+		this.maxEntrySize = maxEntrySize;
+		return this;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+	@Override
+	public long getStaleHits() {
+		return staleHits.get();
+	}
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+	@Override
+	public long getRevalidations() {
+		return revalidations.get();
+	}
+	@Override
+	public long getNotModified() {
+		return notModified.get();
+	}
+	@Override
+	public long getStores() {
+		return stores.get();
+	}
+	@Override
+	public int getEntries() {
+		return store.getEntries();
+	}
+	@Override
+	public long getSize() {
+		return store.getSize();
+	}
+}
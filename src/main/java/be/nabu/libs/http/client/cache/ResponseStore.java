@@ -0,0 +1,33 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.cache;
+
+/**
+ * Stores the responses for the response cache, implementations must be thread safe
+ */
+public interface ResponseStore {
+	public CachedResponse get(String key);
+	public void put(String key, CachedResponse response);
+	public void remove(String key);
+	public void clear();
+	public int getEntries();
+	/**
+	 * The amount of bytes of content that is stored
+	 */
+	public long getSize();
+}
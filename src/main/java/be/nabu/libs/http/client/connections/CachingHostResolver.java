@@ -0,0 +1,116 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.connections;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches the result of another resolver, failed lookups are cached as well (for a shorter time by default) so an unknown host does not trigger a blocking lookup on every request
+ * Each lookup rotates the cached addresses so the connections are spread round robin over all the records of a host
+ */
+public class CachingHostResolver implements HostResolver {
+
+	private HostResolver parent;
+	private long timeToLive = 30000, negativeTimeToLive = 10000;
+	private Map<String, CachedAddresses> cache = new ConcurrentHashMap<String, CachedAddresses>();
+	
+	public CachingHostResolver() {
+		this(new SystemHostResolver());
+	}
+	
+	public CachingHostResolver(HostResolver parent) {
+		this.parent = parent;
+	}
+	
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		String key = host.toLowerCase();
+		CachedAddresses cached = cache.get(key);
+		long now = System.currentTimeMillis();
+		if (cached == null || cached.expires <= now) {
+			try {
+				InetAddress[] addresses = parent.resolve(host);
+				if (addresses == null || addresses.length == 0) {
+					throw new UnknownHostException(host);
+				}
+				cached = new CachedAddresses(addresses, null, now + timeToLive);
+			}
+			catch (UnknownHostException e) {
+				cached = new CachedAddresses(null, e.getMessage(), now + negativeTimeToLive);
+			}
+			// a time to live of 0 disables the cache
+			if (cached.expires > now) {
+				cache.put(key, cached);
+			}
+		}
+		if (cached.addresses == null) {
+			throw new UnknownHostException(cached.failure == null ? host : cached.failure);
+		}
+		return cached.next();
+	}
+	
+	public void invalidate(String host) {
+		cache.remove(host.toLowerCase());
+	}
+	
+	public void clear() {
+		cache.clear();
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+	public CachingHostResolver setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+		return this;
+	}
+
+	public long getNegativeTimeToLive() {
+		return negativeTimeToLive;
+	}
+	public CachingHostResolver setNegativeTimeToLive(long negativeTimeToLive) {
+		this.negativeTimeToLive = negativeTimeToLive;
+		return this;
+	}
+
+	private static class CachedAddresses {
+		private InetAddress [] addresses;
+		private String failure;
+		private long expires;
+		private AtomicInteger offset = new AtomicInteger();
+		
+		public CachedAddresses(InetAddress[] addresses, String failure, long expires) {
+			this.addresses = addresses;
+			this.failure = failure;
+			this.expires = expires;
+		}
+		
+		public InetAddress[] next() {
+			InetAddress [] rotated = new InetAddress[addresses.length];
+			int start = (offset.getAndIncrement() & Integer.MAX_VALUE) % addresses.length;
+			for (int i = 0; i < addresses.length; i++) {
+				rotated[i] = addresses[(start + i) % addresses.length];
+			}
+			return rotated;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.connections;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A selector that waits for pending connects and enforces their timeout, a single thread can follow any amount of connects
+ * Only the connect itself is done here, the channels are handed back in non-blocking mode and the caller decides what to do with them
+ */
+class ConnectLoop implements Runnable {
+	
+	private Selector selector;
+	private Queue<PendingConnect> pending = new ConcurrentLinkedQueue<PendingConnect>();
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	public ConnectLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		Thread thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * The future is completed by the loop once the channel is connected, with a SocketTimeoutException if this takes longer than the timeout (0 means no timeout)
+	 */
+	public CompletableFuture<SocketChannel> connect(SocketChannel channel, int timeout) {
+		CompletableFuture<SocketChannel> future = new CompletableFuture<SocketChannel>();
+		pending.add(new PendingConnect(channel, future, timeout));
+		selector.wakeup();
+		return future;
+	}
+	
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				List<PendingConnect> done = new ArrayList<PendingConnect>();
+				List<IOException> failures = new ArrayList<IOException>();
+				PendingConnect connect;
+				while ((connect = pending.poll()) != null) {
+					try {
+						connect.channel.register(selector, SelectionKey.OP_CONNECT, connect);
+					}
+					catch (IOException e) {
+						done.add(connect);
+						failures.add(e);
+					}
+				}
+				long now = System.currentTimeMillis();
+				long wait = 0;
+				for (SelectionKey key : selector.keys()) {
+					long remaining = ((PendingConnect) key.attachment()).deadline - now;
+					if (wait == 0 || remaining < wait) {
+						wait = Math.max(1, remaining);
+					}
+				}
+				selector.select(wait);
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					PendingConnect ready = (PendingConnect) key.attachment();
+					try {
+						if (ready.channel.finishConnect()) {
+							key.cancel();
+							done.add(ready);
+							failures.add(null);
+						}
+					}
+					catch (IOException e) {
+						key.cancel();
+						done.add(ready);
+						failures.add(e);
+					}
+				}
+				now = System.currentTimeMillis();
+				for (SelectionKey key : selector.keys()) {
+					PendingConnect expired = (PendingConnect) key.attachment();
+					if (key.isValid() && expired.deadline <= now) {
+						key.cancel();
+						done.add(expired);
+						failures.add(new SocketTimeoutException("Connect timed out after " + expired.timeout + "ms"));
+					}
+				}
+				if (!done.isEmpty()) {
+					// deregisters the cancelled keys so the channels can be switched back to blocking mode
+					selector.selectNow();
+					for (int i = 0; i < done.size(); i++) {
+						if (failures.get(i) == null) {
+							done.get(i).future.complete(done.get(i).channel);
+						}
+						else {
+							ConnectionUtils.closeQuietly(done.get(i).channel);
+							done.get(i).future.completeExceptionally(failures.get(i));
+						}
+					}
+				}
+			}
+			catch (ClosedSelectorException e) {
+				break;
+			}
+			catch (Exception e) {
+				logger.error("Unexpected error in the connect loop", e);
+			}
+		}
+	}
+	
+	private static class PendingConnect {
+		private SocketChannel channel;
+		private CompletableFuture<SocketChannel> future;
+		private int timeout;
+		private long deadline;
+		
+		public PendingConnect(SocketChannel channel, CompletableFuture<SocketChannel> future, int timeout) {
+			this.channel = channel;
+			this.future = future;
+			this.timeout = timeout;
+			this.deadline = timeout <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+		}
+	}
+}
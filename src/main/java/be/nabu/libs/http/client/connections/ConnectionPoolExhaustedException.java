@@ -0,0 +1,66 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.connections;
+
+import java.io.IOException;
+
+/**
+ * Thrown when no socket became available within the acquire timeout of the pool
+ * The host and port are only filled in when the limit for a specific target was reached
+ */
+public class ConnectionPoolExhaustedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+	
+	private String host;
+	private int port, poolSize;
+	private long timeout;
+
+	public ConnectionPoolExhaustedException(String host, int port, int poolSize, long timeout) {
+		super("The connection pool for " + host + ":" + port + " is exhausted, all " + poolSize + " sockets remained in use for " + timeout + "ms");
+		this.host = host;
+		this.port = port;
+		this.poolSize = poolSize;
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * The global budget across all targets is exhausted
+	 */
+	public ConnectionPoolExhaustedException(int poolSize, long timeout) {
+		super("The connection pool is exhausted, all " + poolSize + " connections remained in use for " + timeout + "ms");
+		this.poolSize = poolSize;
+		this.timeout = timeout;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+}
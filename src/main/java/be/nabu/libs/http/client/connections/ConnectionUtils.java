@@ -0,0 +1,61 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.connections;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Helpers that are shared by the connection handlers
+ */
+final class ConnectionUtils {
+
+	private ConnectionUtils() {
+		// static only
+	}
+	
+	static boolean isIPAddress(String host) {
+		return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+	}
+	
+	/**
+	 * Support for SNI, it is not allowed for ip addresses
+	 */
+	static void setServerName(SSLSocket socket, String host) {
+		if (!isIPAddress(host)) {
+			SSLParameters sslParameters = socket.getSSLParameters();
+			sslParameters.setServerNames(Arrays.asList(new SNIServerName[] { new SNIHostName(host) }));
+			socket.setSSLParameters(sslParameters);
+		}
+	}
+	
+	static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		}
+		catch (IOException e) {
+			// do nothing
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.connections;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects to a host that may have multiple addresses (e.g. both IPv6 and IPv4) in the style of RFC 8305 ("happy eyeballs")
+ * The addresses are interleaved by family, starting with the family the resolver returned first, and the attempts are staggered: if an attempt has not succeeded within the attempt delay, the next address is tried in parallel
+ * A refused or failed attempt immediately starts the next one, the first connection that succeeds wins and all the others are closed
+ * The connect can also be done without tying up a thread with connectChannel(), the addresses are then tried one after the other
+ */
+public class DualStackConnector {
+	
+	private static Executor defaultExecutor;
+	private static ConnectLoop [] connectLoops = new ConnectLoop[Math.max(1, Runtime.getRuntime().availableProcessors() / 2)];
+	private static AtomicInteger nextConnectLoop = new AtomicInteger();
+	
+	private HostResolver resolver;
+	private long attemptDelay = 250;
+	private Executor executor;
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	public DualStackConnector() {
+		this(new CachingHostResolver());
+	}
+	
+	public DualStackConnector(HostResolver resolver) {
+		this.resolver = resolver;
+	}
+	
+	/**
+	 * The connection timeout applies to the connect as a whole, not to each attempt
+	 */
+	public Socket connect(String host, int port, int connectionTimeout) throws IOException {
+		List<InetAddress> addresses = sort(resolver.resolve(host));
+		if (addresses.size() == 1) {
+			Socket socket = newSocket();
+			try {
+				socket.connect(new InetSocketAddress(addresses.get(0), port), connectionTimeout);
+			}
+			catch (IOException e) {
+				ConnectionUtils.closeQuietly(socket);
+				throw e;
+			}
+			return socket;
+		}
+		return race(host, port, addresses, connectionTimeout);
+	}
+	
+	/**
+	 * The future is completed by a shared connect loop once the channel is connected, the channel is still in non-blocking mode at that point
+	 * If an address fails, the next one is tried, the connection timeout applies to the connect as a whole
+	 */
+	public CompletableFuture<SocketChannel> connectChannel(String host, int port, int connectionTimeout) {
+		CompletableFuture<SocketChannel> future = new CompletableFuture<SocketChannel>();
+		List<InetAddress> addresses;
+		try {
+			addresses = sort(resolver.resolve(host));
+		}
+		catch (IOException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		connectChannel(host, addresses, 0, port, connectionTimeout, connectionTimeout <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + connectionTimeout, future);
+		return future;
+	}
+	
+	private void connectChannel(final String host, final List<InetAddress> addresses, final int index, final int port, final int connectionTimeout, final long deadline, final CompletableFuture<SocketChannel> future) {
+		CompletableFuture<SocketChannel> attempt;
+		SocketChannel channel = null;
+		try {
+			long remaining = deadline == Long.MAX_VALUE ? 0 : deadline - System.currentTimeMillis();
+			if (deadline != Long.MAX_VALUE && remaining <= 0) {
+				throw new SocketTimeoutException("Could not connect to any of the " + addresses.size() + " addresses of " + host + ":" + port + " within " + connectionTimeout + "ms");
+			}
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			if (channel.connect(new InetSocketAddress(addresses.get(index), port))) {
+				attempt = CompletableFuture.completedFuture(channel);
+			}
+			else {
+				attempt = getConnectLoop().connect(channel, (int) remaining);
+			}
+		}
+		catch (IOException e) {
+			if (channel != null) {
+				ConnectionUtils.closeQuietly(channel);
+			}
+			attempt = new CompletableFuture<SocketChannel>();
+			attempt.completeExceptionally(e);
+		}
+		attempt.whenComplete(new BiConsumer<SocketChannel, Throwable>() {
+			@Override
+			public void accept(SocketChannel channel, Throwable failure) {
+				if (failure == null) {
+					future.complete(channel);
+				}
+				else if (index < addresses.size() - 1 && !(failure instanceof SocketTimeoutException)) {
+					logger.debug("Could not connect to " + addresses.get(index) + " for " + host + ", trying the next address", failure);
+					connectChannel(host, addresses, index + 1, port, connectionTimeout, deadline, future);
+				}
+				else {
+					future.completeExceptionally(failure);
+				}
+			}
+		});
+	}
+	
+	private static ConnectLoop getConnectLoop() throws IOException {
+		int index = (nextConnectLoop.getAndIncrement() & Integer.MAX_VALUE) % connectLoops.length;
+		synchronized(connectLoops) {
+			if (connectLoops[index] == null) {
+				connectLoops[index] = new ConnectLoop("http-client-connect-loop-" + index);
+			}
+			return connectLoops[index];
+		}
+	}
+	
+	/**
+	 * The socket is backed by a channel so the executor can send files with transferTo() and receive them with transferFrom()
+	 */
+	private static Socket newSocket() throws IOException {
+		return SocketChannel.open().socket();
+	}
+	
+	private Socket race(String host, int port, List<InetAddress> addresses, int connectionTimeout) throws IOException {
+		long deadline = connectionTimeout <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + connectionTimeout;
+		Race race = new Race();
+		int started = 0, failed = 0;
+		IOException lastFailure = null;
+		try {
+			race.start(addresses.get(started++), port, deadline);
+			while (true) {
+				long now = System.currentTimeMillis();
+				if (now >= deadline) {
+					throw new SocketTimeoutException("Could not connect to any of the " + addresses.size() + " addresses of " + host + ":" + port + " within " + connectionTimeout + "ms");
+				}
+				long wait = started < addresses.size() ? Math.min(attemptDelay, deadline - now) : deadline - now;
+				Attempt attempt = race.results.poll(wait, TimeUnit.MILLISECONDS);
+				if (attempt == null) {
+					// the running attempts are taking too long, start the next one in parallel
+					if (started < addresses.size()) {
+						race.start(addresses.get(started++), port, deadline);
+					}
+				}
+				else if (attempt.failure == null) {
+					race.win(attempt);
+					return attempt.socket;
+				}
+				else {
+					logger.debug("Could not connect to " + attempt.address + " for " + host, attempt.failure);
+					lastFailure = attempt.failure;
+					if (++failed == addresses.size()) {
+						throw lastFailure;
+					}
+					else if (started < addresses.size()) {
+						race.start(addresses.get(started++), port, deadline);
+					}
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while connecting to " + host + ":" + port);
+		}
+		finally {
+			race.finish();
+		}
+	}
+	
+	/**
+	 * Interleaves the address families, starting with the family of the first address
+	 */
+	public static List<InetAddress> sort(InetAddress [] addresses) {
+		List<InetAddress> preferred = new ArrayList<InetAddress>();
+		List<InetAddress> other = new ArrayList<InetAddress>();
+		for (InetAddress address : addresses) {
+			if (preferred.isEmpty() || (address instanceof Inet6Address) == (preferred.get(0) instanceof Inet6Address)) {
+				preferred.add(address);
+			}
+			else {
+				other.add(address);
+			}
+		}
+		List<InetAddress> sorted = new ArrayList<InetAddress>();
+		for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+			if (i < preferred.size()) {
+				sorted.add(preferred.get(i));
+			}
+			if (i < other.size()) {
+				sorted.add(other.get(i));
+			}
+		}
+		return sorted;
+	}
+	
+	public HostResolver getResolver() {
+		return resolver;
+	}
+
+	public long getAttemptDelay() {
+		return attemptDelay;
+	}
+	public DualStackConnector setAttemptDelay(long attemptDelay) {
+		this.attemptDelay = attemptDelay;
+		return this;
+	}
+
+	public Executor getExecutor() {
+		return executor == null ? getDefaultExecutor() : executor;
+	}
+	public DualStackConnector setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	private static synchronized Executor getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "http-client-connect");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+	
+	private static class Attempt {
+		private InetAddress address;
+		private Socket socket;
+		private IOException failure;
+		
+		public Attempt(InetAddress address, Socket socket) {
+			this.address = address;
+			this.socket = socket;
+		}
+	}
+	
+	private class Race {
+		private BlockingQueue<Attempt> results = new LinkedBlockingQueue<Attempt>();
+		private List<Attempt> running = new ArrayList<Attempt>();
+		private boolean finished;
+		
+		public void start(InetAddress address, final int port, final long deadline) throws IOException {
+			final Attempt attempt = new Attempt(address, newSocket());
+			synchronized(this) {
+				running.add(attempt);
+			}
+			getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long remaining = deadline == Long.MAX_VALUE ? 0 : deadline - System.currentTimeMillis();
+						if (deadline != Long.MAX_VALUE && remaining <= 0) {
+							throw new SocketTimeoutException("Connect timed out");
+						}
+						attempt.socket.connect(new InetSocketAddress(attempt.address, port), (int) remaining);
+					}
+					catch (IOException e) {
+						attempt.failure = e;
+						ConnectionUtils.closeQuietly(attempt.socket);
+					}
+					synchronized(Race.this) {
+						running.remove(attempt);
+						// nobody is waiting for this anymore
+						if (finished) {
+							ConnectionUtils.closeQuietly(attempt.socket);
+						}
+						else {
+							results.add(attempt);
+						}
+					}
+				}
+			});
+		}
+		
+		public synchronized void win(Attempt winner) {
+			running.remove(winner);
+			results.remove(winner);
+			finish();
+		}
+		
+		/**
+		 * Aborts all the attempts that are still running and closes the ones that connected but lost
+		 */
+		public synchronized void finish() {
+			if (!finished) {
+				finished = true;
+				for (Attempt attempt : running) {
+					ConnectionUtils.closeQuietly(attempt.socket);
+				}
+				running.clear();
+				Attempt attempt;
+				while ((attempt = results.poll()) != null) {
+					ConnectionUtils.closeQuietly(attempt.socket);
+				}
+			}
+		}
+	}
+}
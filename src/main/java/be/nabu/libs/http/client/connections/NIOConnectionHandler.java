@@ -0,0 +1,202 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.connections;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import be.nabu.libs.http.api.client.ConnectionHandler;
+import be.nabu.libs.http.api.client.Proxy;
+
+/**
+ * A connection handler that connects using non-blocking socket channels (see DualStackConnector.connectChannel()), no thread is tied up while a connect is in progress when using connectAsync()
+ * Only the connect is non-blocking: once connected the channel is switched to blocking mode and its socket is handed out because the formatter and parser work on blocking streams
+ * This also means the plain sockets expose their channel (e.g. for zero-copy transfers)
+ */
+public class NIOConnectionHandler implements ConnectionHandler {
+
+	private SSLContext secureContext;
+	private Set<Socket> openSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private int connectionTimeout, socketTimeout;
+	private boolean closeOnRelease = true;
+	private DualStackConnector connector = new DualStackConnector();
+	private volatile boolean closed;
+	
+	public NIOConnectionHandler(SSLContext context, int connectionTimeout, int socketTimeout) {
+		this.secureContext = context;
+		this.connectionTimeout = connectionTimeout;
+		this.socketTimeout = socketTimeout;
+	}
+	
+	@Override
+	public Socket connect(String host, int port, boolean secure) throws IOException {
+		SocketChannel channel;
+		try {
+			channel = connectChannel(host, port).get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while connecting to " + host + ":" + port);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not connect to " + host + ":" + port, e.getCause());
+		}
+		try {
+			return toSocket(channel, host, port, secure);
+		}
+		catch (IOException e) {
+			ConnectionUtils.closeQuietly(channel);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Connects without tying up a thread, once connected the socket is set up (including the TLS handshake for secure connections) on the given executor
+	 */
+	public CompletableFuture<Socket> connectAsync(final String host, final int port, final boolean secure, Executor executor) {
+		return connectChannel(host, port).thenApplyAsync(new Function<SocketChannel, Socket>() {
+			@Override
+			public Socket apply(SocketChannel channel) {
+				try {
+					return toSocket(channel, host, port, secure);
+				}
+				catch (IOException e) {
+					ConnectionUtils.closeQuietly(channel);
+					throw new CompletionException(e);
+				}
+			}
+		}, executor);
+	}
+	
+	private CompletableFuture<SocketChannel> connectChannel(String host, int port) {
+		if (closed) {
+			CompletableFuture<SocketChannel> future = new CompletableFuture<SocketChannel>();
+			future.completeExceptionally(new IOException("The connection handler is closed"));
+			return future;
+		}
+		return connector.connectChannel(host, port, connectionTimeout);
+	}
+	
+	private Socket toSocket(SocketChannel channel, String host, int port, boolean secure) throws IOException {
+		// a connect that finishes after the handler was closed is not handed out
+		if (closed) {
+			throw new IOException("The connection handler is closed");
+		}
+		channel.configureBlocking(true);
+		Socket socket = channel.socket();
+		socket.setSoTimeout(socketTimeout);
+		if (secure) {
+			SSLSocket secureSocket = (SSLSocket) secureContext.getSocketFactory().createSocket(socket, host, port, true);
+			ConnectionUtils.setServerName(secureSocket, host);
+			secureSocket.setSoTimeout(socketTimeout);
+			secureSocket.startHandshake();
+			socket = secureSocket;
+		}
+		openSockets.add(socket);
+		return socket;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		IOException exception = null;
+		for (Socket socket : new ArrayList<Socket>(openSockets)) {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				exception = e;
+			}
+		}
+		openSockets.clear();
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	@Override
+	public void release(Socket socket) throws IOException {
+		if (closeOnRelease) {
+			close(socket);
+		}
+	}
+
+	@Override
+	public void close(Socket socket) throws IOException {
+		openSockets.remove(socket);
+		if (!socket.isClosed()) {
+			socket.close();
+		}
+	}
+
+	@Override
+	public SSLContext getSecureContext() {
+		return secureContext;
+	}
+
+	@Override
+	public Proxy getProxy() {
+		return null;
+	}
+
+	@Override
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	@Override
+	public int getConnectionTimeout() {
+		return connectionTimeout;
+	}
+	
+	public List<Socket> getOpenSockets() {
+		return new ArrayList<Socket>(openSockets);
+	}
+
+	public boolean isCloseOnRelease() {
+		return closeOnRelease;
+	}
+	public void setCloseOnRelease(boolean closeOnRelease) {
+		this.closeOnRelease = closeOnRelease;
+	}
+	
+	public HostResolver getResolver() {
+		return connector.getResolver();
+	}
+	public void setResolver(HostResolver resolver) {
+		this.connector = new DualStackConnector(resolver);
+	}
+}
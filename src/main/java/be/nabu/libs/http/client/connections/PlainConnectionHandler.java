@@ -18,16 +18,11 @@
 package be.nabu.libs.http.client.connections;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
-import javax.net.ssl.SNIHostName;
-import javax.net.ssl.SNIServerName;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 
 import be.nabu.libs.http.api.client.ConnectionHandler;
@@ -39,6 +34,7 @@ public class PlainConnectionHandler implements ConnectionHandler {
 	private List<Socket> openSockets = new ArrayList<Socket>();
 	private int connectionTimeout, socketTimeout;
 	private boolean closeOnRelease = true;
+	private DualStackConnector connector = new DualStackConnector();
 	
 	public PlainConnectionHandler(SSLContext context, int connectionTimeout, int socketTimeout) {
 		this.secureContext = context;
@@ -62,21 +58,35 @@ public class PlainConnectionHandler implements ConnectionHandler {
 
 	@Override
 	public Socket connect(String host, int port, boolean secure) throws IOException {
-		Socket socket = secure ? secureContext.getSocketFactory().createSocket() : new Socket();
-		// support for SNI
-		if (socket instanceof SSLSocket) {
-			SSLParameters sslParameters = new SSLParameters();
-			sslParameters.setServerNames(Arrays.asList(new SNIServerName[] { new SNIHostName(host) }));
-			((SSLSocket) socket).setSSLParameters(sslParameters);
+		Socket socket = connector.connect(host, port, connectionTimeout);
+		try {
+			socket.setSoTimeout(socketTimeout);
+			if (secure) {
+				SSLSocket secureSocket = (SSLSocket) secureContext.getSocketFactory().createSocket(socket, host, port, true);
+				ConnectionUtils.setServerName(secureSocket, host);
+				secureSocket.setSoTimeout(socketTimeout);
+				socket = secureSocket;
+			}
+		}
+		catch (IOException e) {
+			socket.close();
+			throw e;
 		}
-		socket.connect(new InetSocketAddress(host, port), connectionTimeout);
-		socket.setSoTimeout(socketTimeout);
 		synchronized(openSockets) {
 			openSockets.add(socket);
 		}
 		return socket;
 	}
 
+	/**
+	 * Stops tracking the socket without closing it, the caller becomes responsible for it (e.g. a tunnel that is handed to another connection handler)
+	 */
+	public void detach(Socket socket) {
+		synchronized(openSockets) {
+			openSockets.remove(socket);
+		}
+	}
+
 	@Override
 	public void release(Socket socket) throws IOException {
 		if (closeOnRelease) {
@@ -130,4 +140,14 @@ public class PlainConnectionHandler implements ConnectionHandler {
 	public void setCloseOnRelease(boolean closeOnRelease) {
 		this.closeOnRelease = closeOnRelease;
 	}
+
+	public DualStackConnector getConnector() {
+		return connector;
+	}
+	/**
+	 * Replaces the (caching) resolver used to look up the hosts
+	 */
+	public void setResolver(HostResolver resolver) {
+		this.connector = new DualStackConnector(resolver);
+	}
 }
@@ -19,12 +19,36 @@ package be.nabu.libs.http.client.connections;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.io.InterruptedIOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -35,19 +59,56 @@ import org.slf4j.LoggerFactory;
 import be.nabu.libs.http.api.client.ConnectionHandler;
 import be.nabu.libs.http.api.client.Proxy;
 import be.nabu.libs.http.api.client.ProxyBypassFilter;
+import be.nabu.libs.http.client.metrics.ConnectionPoolListener;
+import be.nabu.libs.http.client.metrics.ConnectionPoolMetrics;
 
 public class PooledConnectionHandler implements ConnectionHandler {
 	
 	private SSLContext secureContext;
 	
-	private Map<String, SocketHandler> socketHandlers = new HashMap<String, SocketHandler>();
+	private Map<String, SocketHandler> socketHandlers = new ConcurrentHashMap<String, SocketHandler>();
+	// sockets do not override equals/hashcode so this is an identity lookup of the pool entry for each socket
+	private Map<Socket, PooledConnection> connections = new ConcurrentHashMap<Socket, PooledConnection>();
 	
 	private int maxAmountOfConnectionsPerTarget;
 	private Proxy proxy;
 	private int connectionTimeout = 10*1000*60, socketTimeout = 10*1000*60;
+	// how long to wait for a socket if all the sockets for a target are in use
+	private int acquireTimeout = 10*1000*60;
 	private List<ProxyBypassFilter> proxyBypass;
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	
+	// how long a socket can remain unused in the pool before it is closed, 0 to keep it indefinitely
+	private long idleTimeout = 60*1000;
+	// how long a socket can live in total (regardless of usage), 0 for no limit
+	private long maxLifetime;
+	// the maximum amount of unused sockets across all targets, 0 for no limit
+	private int maxIdleConnections;
+	// a socket that has been idle for longer than this is checked before it is handed out, it may have been closed by the server, negative to never check
+	private long validateAfterInactivity = 2000;
+	// how often the pool is checked for sockets to evict
+	private long evictionInterval = 5000;
+	private ScheduledExecutorService evictor;
+	
+	// the maximum amount of open sockets across all targets, 0 for no limit
+	private int maxConnections;
+	private Semaphore globalSlots;
+	// overrides of the maximum amount of connections per target
+	private Map<String, Integer> routeLimits = new ConcurrentHashMap<String, Integer>();
+	private Map<Pattern, Integer> routePatternLimits = new LinkedHashMap<Pattern, Integer>();
+	
+	private GlobalMetrics globalMetrics = new GlobalMetrics();
+	
+	// the routes that should have a minimum amount of idle connections
+	private Map<String, MinIdle> minIdle = new ConcurrentHashMap<String, MinIdle>();
+	private ExecutorService prewarmExecutor;
+	
+	private DualStackConnector connector = new DualStackConnector();
+	
+	// notified when a pooled socket is closed, for example to drop state that is kept per socket
+	private List<Consumer<Socket>> closeListeners = new CopyOnWriteArrayList<Consumer<Socket>>();
+	private ConnectionPoolListener listener;
+	
 	public PooledConnectionHandler(SSLContext secureContext, int maxAmountOfConnectionsPerTarget) {
 		this.secureContext = secureContext;
 		this.maxAmountOfConnectionsPerTarget = maxAmountOfConnectionsPerTarget;
@@ -75,34 +136,120 @@ public class PooledConnectionHandler implements ConnectionHandler {
 	
 	@Override
 	public Socket connect(String host, int port, boolean secure) throws IOException {
+		return connect(host, port, secure, null);
+	}
+	
+	/**
+	 * Connections can be bound to a state (e.g. the principal they were authenticated for with NTLM), a bound connection is only handed out for the same state
+	 * A connection that is already bound to the given state is preferred over an unbound one, if the state is null only unbound connections are used
+	 */
+	public Socket connect(String host, int port, boolean secure, Object state) throws IOException {
+		return getSocketHandler(host, port).acquire(secure, acquireTimeout, state);
+	}
+	
+	/**
+	 * Binds the connection to the given state, for example once it has been authenticated with a connection based scheme
+	 * Returns false if the socket is not controlled by this connection handler
+	 */
+	public boolean bind(Socket socket, Object state) {
+		PooledConnection connection = connections.get(socket);
+		if (connection == null) {
+			return false;
+		}
+		connection.state = state;
+		return true;
+	}
+	
+	private SocketHandler getSocketHandler(String host, int port) {
 		String key = host + ":" + port;
-		if (!socketHandlers.containsKey(key)) {
-			synchronized(socketHandlers) {
-				if (!socketHandlers.containsKey(key)) {
-					socketHandlers.put(key, new SocketHandler(maxAmountOfConnectionsPerTarget, host, port));
+		SocketHandler handler = socketHandlers.get(key);
+		if (handler == null) {
+			SocketHandler newHandler = new SocketHandler(getMaxConnectionsPerRoute(host, port), host, port);
+			handler = socketHandlers.putIfAbsent(key, newHandler);
+			if (handler == null) {
+				handler = newHandler;
+				startEvictor();
+			}
+		}
+		return handler;
+	}
+	
+	/**
+	 * Opens (at most) the given amount of connections to the target in the background and adds them to the pool as idle connections
+	 * This takes the connect and TLS handshake out of the first requests, connections are only opened if there is room in the pool (nothing is evicted for this)
+	 * The future is completed with the amount of connections that were actually opened
+	 */
+	public CompletableFuture<Integer> prewarm(final String host, final int port, final boolean secure, int amount) {
+		final SocketHandler handler = getSocketHandler(host, port);
+		final AtomicInteger opened = new AtomicInteger();
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		Executor executor = getPrewarmExecutor();
+		for (int i = 0; i < amount; i++) {
+			futures.add(CompletableFuture.runAsync(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (handler.prewarm(secure)) {
+							opened.incrementAndGet();
+						}
+					}
+					catch (IOException e) {
+						logger.warn("Could not prewarm a connection to " + host + ":" + port, e);
+					}
 				}
+			}, executor));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenApply(new Function<Void, Integer>() {
+			@Override
+			public Integer apply(Void result) {
+				return opened.get();
 			}
+		});
+	}
+	
+	/**
+	 * The pool will make sure there are at least this amount of idle connections to the target, they are opened in the background
+	 * The idle connections are replenished at the eviction interval, set the amount to 0 to stop
+	 */
+	public PooledConnectionHandler setMinIdle(String host, int port, boolean secure, int amount) {
+		if (amount <= 0) {
+			minIdle.remove(host + ":" + port);
 		}
-		Socket freeSocket = null; 
-		while (freeSocket == null && !Thread.currentThread().isInterrupted()) {
-			freeSocket = socketHandlers.get(key).getFreeSocket(secure);
+		else {
+			minIdle.put(host + ":" + port, new MinIdle(host, port, secure, amount));
+			getSocketHandler(host, port);
+			prewarm(host, port, secure, amount);
 		}
-		if (freeSocket == null) {
-			throw new IOException("Could not get a free socket to " + host + ":" + port);
+		return this;
+	}
+	
+	private void replenish() {
+		for (MinIdle route : minIdle.values()) {
+			int missing = route.amount - getSocketHandler(route.host, route.port).getIdle();
+			if (missing > 0) {
+				prewarm(route.host, route.port, route.secure, missing);
+			}
+		}
+	}
+	
+	private synchronized Executor getPrewarmExecutor() {
+		if (prewarmExecutor == null) {
+			prewarmExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "http-client-connection-prewarm");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
-		return freeSocket;
+		return prewarmExecutor;
 	}
 	
 	@Override
 	public void release(Socket socket) {
-		boolean released = false;
-		for (SocketHandler handler : socketHandlers.values()) {
-			if (handler.release(socket)) {
-				released = true;
-				break;
-			}
-		}
-		if (!released) {
+		PooledConnection connection = connections.get(socket);
+		if (connection == null || !connection.handler.release(connection)) {
 			throw new RuntimeException("Can not release the socket " + socket + ", it is not controlled by this connection handler");
 		}
 	}
@@ -113,44 +260,213 @@ public class PooledConnectionHandler implements ConnectionHandler {
 	 */
 	@Override
 	public void close(Socket socket) throws IOException {
-		boolean closed = false;
-		for (SocketHandler handler : socketHandlers.values()) {
-			if (handler.close(socket)) {
-				closed = true;
-				break;
-			}
-		}
-		if (!closed) {
+		PooledConnection connection = connections.get(socket);
+		if (connection == null || !connection.handler.close(connection)) {
 			logger.warn("Can not close the socket {}, it is not controlled by this connection handler", socket);
 			socket.close();
 		}
 	}
 	
 	public void close(String host, int port) throws IOException {
-		String key = host + ":" + port;
-		if (socketHandlers.containsKey(key)) {
-			synchronized(socketHandlers) {
-				if (socketHandlers.containsKey(key)) {
-					socketHandlers.get(key).close();
-					socketHandlers.remove(key);
-				}
-			}
+		SocketHandler handler = socketHandlers.remove(host + ":" + port);
+		if (handler != null) {
+			handler.close();
 		}
 	}
 	
 	@Override
 	public synchronized void close() throws IOException {
+		if (evictor != null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+		if (prewarmExecutor != null) {
+			prewarmExecutor.shutdownNow();
+			prewarmExecutor = null;
+		}
+		minIdle.clear();
 		IOException exception = null;
+		for (String key : socketHandlers.keySet()) {
+			SocketHandler handler = socketHandlers.remove(key);
+			if (handler != null) {
+				try {
+					handler.close();
+				}
+				catch (IOException e) {
+					exception = e;
+				}
+			}
+		}
+		if (exception != null)
+			throw exception;
+	}
+	
+	/**
+	 * Remove the connection from the lookup and free up its spot in the global budget
+	 */
+	private void forget(PooledConnection connection) {
+		if (connections.remove(connection.socket) != null) {
+			if (globalSlots != null) {
+				globalSlots.release();
+			}
+			for (Consumer<Socket> listener : closeListeners) {
+				listener.accept(connection.socket);
+			}
+		}
+	}
+	
+	/**
+	 * Reserve a spot in the global budget for a new socket, if the budget is exhausted we close unused sockets (least recently used first) to make room
+	 */
+	private void reserveConnection(long timeout) throws IOException {
+		if (globalSlots == null) {
+			return;
+		}
+		while (!globalSlots.tryAcquire()) {
+			if (!evictLeastRecentlyUsed()) {
+				try {
+					if (!globalSlots.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+						throw new ConnectionPoolExhaustedException(maxConnections, timeout);
+					}
+					return;
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for room in the connection pool");
+				}
+			}
+		}
+	}
+	
+	private boolean evictLeastRecentlyUsed() {
+		while (true) {
+			PooledConnection oldest = null;
+			for (SocketHandler handler : socketHandlers.values()) {
+				PooledConnection candidate = handler.getLeastRecentlyUsed();
+				if (candidate != null && (oldest == null || candidate.lastUsed < oldest.lastUsed)) {
+					oldest = candidate;
+				}
+			}
+			if (oldest == null) {
+				return false;
+			}
+			// if someone else picked it up in the meantime, try again
+			else if (oldest.handler.evict(oldest)) {
+				return true;
+			}
+		}
+	}
+	
+	private int getMaxConnectionsPerRoute(String host, int port) {
+		Integer limit = routeLimits.get(host + ":" + port);
+		if (limit == null) {
+			limit = routeLimits.get(host);
+		}
+		if (limit == null) {
+			limit = routeLimits.get("*:" + port);
+		}
+		if (limit == null) {
+			synchronized(routePatternLimits) {
+				for (Map.Entry<Pattern, Integer> entry : routePatternLimits.entrySet()) {
+					if (entry.getKey().matcher(host + ":" + port).matches()) {
+						limit = entry.getValue();
+						break;
+					}
+				}
+			}
+		}
+		return limit == null ? maxAmountOfConnectionsPerTarget : limit;
+	}
+	
+	private synchronized void startEvictor() {
+		if (evictor == null && evictionInterval > 0) {
+			evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "http-client-connection-evictor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						evict();
+						replenish();
+					}
+					catch (Exception e) {
+						logger.warn("Could not evict connections", e);
+					}
+				}
+			}, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Closes all the unused sockets that have been idle for too long or have exceeded their lifetime
+	 * If there are more unused sockets than allowed, the ones that have been unused the longest are closed
+	 */
+	public void evict() {
+		long now = System.currentTimeMillis();
+		List<PooledConnection> idle = new ArrayList<PooledConnection>();
 		for (SocketHandler handler : socketHandlers.values()) {
+			idle.addAll(handler.evictExpired(now));
+		}
+		if (maxIdleConnections > 0 && idle.size() > maxIdleConnections) {
+			Collections.sort(idle, new Comparator<PooledConnection>() {
+				@Override
+				public int compare(PooledConnection o1, PooledConnection o2) {
+					return Long.compare(o1.lastUsed, o2.lastUsed);
+				}
+			});
+			int surplus = idle.size() - maxIdleConnections;
+			for (PooledConnection connection : idle) {
+				if (surplus <= 0) {
+					break;
+				}
+				if (connection.handler.evict(connection)) {
+					surplus--;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Only called for connections that were idle (the free ones or one that was just taken from them), so lastUsed is when it was released
+	 */
+	private boolean isExpired(PooledConnection connection, long now) {
+		return (maxLifetime > 0 && now - connection.created > maxLifetime)
+			|| (idleTimeout > 0 && now - connection.lastUsed > idleTimeout);
+	}
+	
+	/**
+	 * Checks whether the server has closed its side of the connection by attempting a very short read
+	 * An idle connection should not have any data waiting, so if there is, it is not usable either
+	 */
+	private boolean isStale(Socket socket) {
+		if (socket.isClosed() || !socket.isConnected() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+			return true;
+		}
+		try {
+			int timeout = socket.getSoTimeout();
 			try {
-				handler.close();
+				socket.setSoTimeout(1);
+				socket.getInputStream().read();
+				return true;
 			}
-			catch (IOException e) {
-				exception = e;
+			catch (SocketTimeoutException e) {
+				return false;
+			}
+			finally {
+				if (!socket.isClosed()) {
+					socket.setSoTimeout(timeout);
+				}
 			}
 		}
-		if (exception != null)
-			throw exception;
+		catch (IOException e) {
+			return true;
+		}
 	}
 	
 	@Override
@@ -183,117 +499,649 @@ public class PooledConnectionHandler implements ConnectionHandler {
 		return this;
 	}
 
+	public int getAcquireTimeout() {
+		return acquireTimeout;
+	}
+
+	public PooledConnectionHandler setAcquireTimeout(int acquireTimeout) {
+		this.acquireTimeout = acquireTimeout;
+		return this;
+	}
+	
+	public DualStackConnector getConnector() {
+		return connector;
+	}
+	/**
+	 * Replaces the (caching) resolver used to look up the hosts, this does not apply to proxied connections
+	 */
+	public PooledConnectionHandler setResolver(HostResolver resolver) {
+		this.connector = new DualStackConnector(resolver);
+		return this;
+	}
+
+	/**
+	 * The amount of TLS sessions that are cached (per target host and port) to allow for abbreviated handshakes, 0 means no limit
+	 * Session tickets (RFC 5077 and TLS 1.3) are used by the JVM if it supports them, this is enabled by default from java 13 onwards
+	 * Note that this configures the session context of the ssl context itself, if it is shared (e.g. SSLContext.getDefault()) this applies to everyone that uses it
+	 */
+	public PooledConnectionHandler setSessionCacheSize(int sessionCacheSize) {
+		if (secureContext != null) {
+			secureContext.getClientSessionContext().setSessionCacheSize(sessionCacheSize);
+		}
+		return this;
+	}
+	
+	/**
+	 * How long (in seconds) a cached TLS session can be resumed, 0 means no limit
+	 * Like the cache size, this applies to everyone that shares the ssl context
+	 */
+	public PooledConnectionHandler setSessionTimeout(int sessionTimeout) {
+		if (secureContext != null) {
+			secureContext.getClientSessionContext().setSessionTimeout(sessionTimeout);
+		}
+		return this;
+	}
+	
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * The maximum amount of open sockets over all targets, this must be set before the first connection is made
+	 */
+	public PooledConnectionHandler setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+		this.globalSlots = maxConnections > 0 ? new Semaphore(maxConnections, true) : null;
+		return this;
+	}
+	
+	/**
+	 * Override the maximum amount of connections for a route, the route can be "host:port", "host" or "*:port"
+	 * The limit is only applied to targets that are connected to afterwards
+	 */
+	public PooledConnectionHandler setMaxConnectionsPerRoute(String route, int maxConnections) {
+		routeLimits.put(route, maxConnections);
+		return this;
+	}
+	
+	/**
+	 * Override the maximum amount of connections for all routes where "host:port" matches the pattern
+	 * Patterns are checked in the order they are added and only if there is no explicit route override
+	 */
+	public PooledConnectionHandler setMaxConnectionsPerRoute(Pattern route, int maxConnections) {
+		synchronized(routePatternLimits) {
+			routePatternLimits.put(route, maxConnections);
+		}
+		return this;
+	}
+	
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public PooledConnectionHandler setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		return this;
+	}
+
+	public long getMaxLifetime() {
+		return maxLifetime;
+	}
+
+	public PooledConnectionHandler setMaxLifetime(long maxLifetime) {
+		this.maxLifetime = maxLifetime;
+		return this;
+	}
+
+	public int getMaxIdleConnections() {
+		return maxIdleConnections;
+	}
+
+	public PooledConnectionHandler setMaxIdleConnections(int maxIdleConnections) {
+		this.maxIdleConnections = maxIdleConnections;
+		return this;
+	}
+
+	public long getValidateAfterInactivity() {
+		return validateAfterInactivity;
+	}
+
+	public PooledConnectionHandler setValidateAfterInactivity(long validateAfterInactivity) {
+		this.validateAfterInactivity = validateAfterInactivity;
+		return this;
+	}
+
+	public long getEvictionInterval() {
+		return evictionInterval;
+	}
+
+	/**
+	 * Must be set before the first connection is made, set to 0 to disable background eviction
+	 */
+	public PooledConnectionHandler setEvictionInterval(long evictionInterval) {
+		this.evictionInterval = evictionInterval;
+		return this;
+	}
+
+	/**
+	 * The metrics of all the routes combined
+	 */
+	public ConnectionPoolMetrics getMetrics() {
+		return globalMetrics;
+	}
+	
+	/**
+	 * The metrics of a single route, this returns null if there have been no connections to it (yet)
+	 */
+	public ConnectionPoolMetrics getMetrics(String host, int port) {
+		return socketHandlers.get(host + ":" + port);
+	}
+	
+	/**
+	 * The routes (host:port) that currently have a pool
+	 */
+	public Set<String> getRoutes() {
+		return new TreeSet<String>(socketHandlers.keySet());
+	}
+	
+	public ConnectionPoolListener getListener() {
+		return listener;
+	}
+
+	public PooledConnectionHandler setListener(ConnectionPoolListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
 	@Override
 	public Proxy getProxy() {
 		return proxy;
 	}
 	
-	private class SocketHandler implements Closeable {
+	/**
+	 * The listener is called whenever a socket leaves the pool (closed, evicted or expired)
+	 */
+	public PooledConnectionHandler addCloseListener(Consumer<Socket> listener) {
+		closeListeners.add(listener);
+		return this;
+	}
+	
+	public PooledConnectionHandler removeCloseListener(Consumer<Socket> listener) {
+		closeListeners.remove(listener);
+		return this;
+	}
+	
+	private static class MinIdle {
+		private String host;
+		private int port, amount;
+		private boolean secure;
+		
+		public MinIdle(String host, int port, boolean secure, int amount) {
+			this.host = host;
+			this.port = port;
+			this.secure = secure;
+			this.amount = amount;
+		}
+	}
+	
+	/**
+	 * A socket in the pool, it knows which handler it belongs to so it can be returned without searching
+	 */
+	private class PooledConnection {
+		private Socket socket;
+		private SocketHandler handler;
+		private boolean inUse;
+		private volatile long created, lastUsed;
+		// the state the connection is bound to, it is never handed out for another state
+		private volatile Object state;
 		
-		private volatile Socket [] sockets;
-		private volatile boolean [] socketsInUse;
+		public PooledConnection(Socket socket, SocketHandler handler) {
+			this.socket = socket;
+			this.handler = handler;
+			this.created = System.currentTimeMillis();
+			this.lastUsed = created;
+		}
+	}
+	
+	private class SocketHandler implements Closeable, ConnectionPoolMetrics {
+		
+		// the connections that are currently not in use, the most recently used one is at the front
+		private Deque<PooledConnection> freeConnections = new ArrayDeque<PooledConnection>();
+		private Set<PooledConnection> allConnections = new HashSet<PooledConnection>();
 		
 		private volatile int amountOfUsedSockets, amountOfFreeSockets, totalAmount;
+		// a fair semaphore so threads waiting for a socket are served in order
+		private Semaphore slots;
+		private volatile boolean closed;
 		private int port;
 		private String host;
 		private String key;
+		private AtomicLong connects = new AtomicLong(), connectFailures = new AtomicLong(), evictions = new AtomicLong(), acquires = new AtomicLong(), acquireWaitTime = new AtomicLong();
+		private AtomicLong handshakes = new AtomicLong(), resumedHandshakes = new AtomicLong(), handshakeTime = new AtomicLong();
 		
 		public SocketHandler(int size, String host, int port) {
 			this.totalAmount = size;
 			this.host = host;
 			this.port = port;
-			this.sockets = new Socket[size];
-			this.socketsInUse = new boolean[size];
+			this.slots = new Semaphore(size, true);
 			this.key = host + ":" + port;
 		}
 		
-		public boolean release(Socket socket) {
-			boolean released = false;
-			for (int i = 0; i < totalAmount; i++) {
-				if (sockets[i] != null && socket.equals(sockets[i])) {
-					synchronized(this) {
-						socketsInUse[i] = false;
-						amountOfUsedSockets--;
-						amountOfFreeSockets++;
-						released = true;
-						break;
-					}
+		/**
+		 * Waits (fair, in order of arrival) for a slot to become available and returns a socket for it
+		 * The slot is given back by either releasing or closing the socket
+		 */
+		public Socket acquire(boolean secure, long timeout, Object state) throws IOException {
+			long started = System.nanoTime();
+			try {
+				if (!slots.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+					throw new ConnectionPoolExhaustedException(host, port, totalAmount, timeout);
+				}
+				long waitTime = (System.nanoTime() - started) / 1000;
+				acquires.incrementAndGet();
+				acquireWaitTime.addAndGet(waitTime);
+				globalMetrics.acquires.incrementAndGet();
+				globalMetrics.acquireWaitTime.addAndGet(waitTime);
+				if (listener != null) {
+					listener.acquired(host, port, waitTime);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a free socket to " + key);
+			}
+			try {
+				if (closed) {
+					throw new IOException("The connection pool for " + key + " has been closed");
 				}
+				return getFreeSocket(secure, timeout, state);
+			}
+			catch (IOException e) {
+				slots.release();
+				throw e;
+			}
+			catch (RuntimeException e) {
+				slots.release();
+				throw e;
 			}
-			return released;
 		}
 		
-		public boolean close(Socket socket) throws IOException {
-			boolean closed = false;
-			for (int i = 0; i < totalAmount; i++) {
-				if (sockets[i] != null && socket.equals(sockets[i])) {
-					synchronized(this) {
-						if (sockets[i] != null && socket.equals(sockets[i])) {
-							socket.close();
-							socketsInUse[i] = false;
-							sockets[i] = null;
-							amountOfUsedSockets--;
-							closed = true;
-						}
-					}
+		public boolean release(PooledConnection connection) {
+			synchronized(this) {
+				if (!connection.inUse) {
+					return false;
+				}
+				connection.inUse = false;
+				connection.lastUsed = System.currentTimeMillis();
+				amountOfUsedSockets--;
+				// the pool was closed while the socket was in use or it has lived long enough
+				if (closed || (maxLifetime > 0 && connection.lastUsed - connection.created > maxLifetime)) {
+					allConnections.remove(connection);
+					forget(connection);
+					ConnectionUtils.closeQuietly(connection.socket);
+				}
+				else {
+					freeConnections.push(connection);
+					amountOfFreeSockets++;
+				}
+			}
+			// wakes up the first thread waiting for a socket
+			slots.release();
+			return true;
+		}
+		
+		public boolean close(PooledConnection connection) throws IOException {
+			boolean wasInUse;
+			synchronized(this) {
+				if (!allConnections.remove(connection)) {
+					return false;
+				}
+				forget(connection);
+				wasInUse = connection.inUse;
+				if (wasInUse) {
+					connection.inUse = false;
+					amountOfUsedSockets--;
+				}
+				else {
+					freeConnections.remove(connection);
+					amountOfFreeSockets--;
+				}
+			}
+			try {
+				connection.socket.close();
+			}
+			finally {
+				if (wasInUse) {
+					slots.release();
 				}
 			}
-			return closed;
+			return true;
 		}
 		
-		public Socket getFreeSocket(boolean secure) throws IOException {
-			if (amountOfFreeSockets > 0) {
-				for (int i = 0; i < totalAmount; i++) {
-					if (!socketsInUse[i]) {
-						synchronized(this) {
-							Socket socket = sockets[i];
-							if (!socketsInUse[i]) {
-								socketsInUse[i] = true;
-								amountOfFreeSockets--;
-								amountOfUsedSockets++;
-							}
-							return socket;
+		/**
+		 * Should only be called when a slot has been acquired, there is then either a free socket or room to create one
+		 */
+		private Socket getFreeSocket(boolean secure, long timeout, Object state) throws IOException {
+			while (true) {
+				PooledConnection free = null, foreign = null;
+				synchronized(this) {
+					PooledConnection unbound = null;
+					for (PooledConnection connection : freeConnections) {
+						if (state == null ? connection.state == null : state.equals(connection.state)) {
+							free = connection;
+							break;
 						}
+						else if (unbound == null && connection.state == null) {
+							unbound = connection;
+						}
+					}
+					if (free == null) {
+						free = unbound;
 					}
+					// all the free connections are bound to something else and there is no room for a new one, the least recently used is sacrificed
+					if (free == null && !freeConnections.isEmpty() && allConnections.size() >= totalAmount) {
+						foreign = freeConnections.peekLast();
+					}
+					PooledConnection taken = free == null ? foreign : free;
+					if (taken != null) {
+						freeConnections.remove(taken);
+						taken.inUse = true;
+						amountOfFreeSockets--;
+						amountOfUsedSockets++;
+					}
+				}
+				if (foreign != null) {
+					logger.debug("Discarding connection {} to {} that is bound to another state", foreign.socket, key);
+					// we keep the slot, it will be used for a new socket
+					discard(foreign);
+					break;
+				}
+				else if (free == null) {
+					break;
+				}
+				long now = System.currentTimeMillis();
+				if (isExpired(free, now) || (validateAfterInactivity >= 0 && now - free.lastUsed > validateAfterInactivity && isStale(free.socket))) {
+					logger.debug("Discarding stale connection {} to {}", free.socket, key);
+					// we keep the slot, it will be used for a new socket
+					discard(free);
+				}
+				else {
+					return free.socket;
 				}
 			}
-			// if you don't have a free socket and there is still room for one, make it
-			if (amountOfFreeSockets + amountOfUsedSockets < totalAmount) {
+			reserveConnection(timeout);
+			boolean created = false;
+			Socket socket = null;
+			try {
+				// the route slot we hold reserves room for this connection, so connecting (and tunneling/handshaking) can happen without holding the lock
+				// a slow or unreachable host then only blocks the thread that is connecting instead of every acquire and release for this route
+				socket = openSocket(secure);
 				synchronized(this) {
-					if (amountOfFreeSockets + amountOfUsedSockets < totalAmount) {
-						Socket socket = null;
-						if (useProxy(host, port)) {
-							socket = getProxy().tunnel(host, port, connectionTimeout, socketTimeout, secure);
-							// wrap a SSLSocket around the regular socket
-							if (secure) {
-								SSLSocket secureSocket = (SSLSocket) secureContext.getSocketFactory().createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
-								secureSocket.startHandshake();
-								socket = secureSocket;
-							}
-						}
-						else {
-							socket = secure ? secureContext.getSocketFactory().createSocket() : new Socket();
-							socket.connect(new InetSocketAddress(host, port), connectionTimeout);
-							socket.setSoTimeout(socketTimeout);
+					if (closed) {
+						throw new IOException("The connection pool for " + key + " has been closed");
+					}
+					PooledConnection connection = new PooledConnection(socket, this);
+					connection.inUse = true;
+					allConnections.add(connection);
+					connections.put(socket, connection);
+					amountOfUsedSockets++;
+					created = true;
+					return socket;
+				}
+			}
+			finally {
+				// the route slot is given back by acquire()
+				if (!created) {
+					if (socket != null) {
+						ConnectionUtils.closeQuietly(socket);
+					}
+					if (globalSlots != null) {
+						globalSlots.release();
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Opens a new connection that is immediately added to the pool as idle, this does not wait for room in the pool
+		 */
+		public boolean prewarm(boolean secure) throws IOException {
+			if (closed || !slots.tryAcquire()) {
+				return false;
+			}
+			try {
+				if (globalSlots != null && !globalSlots.tryAcquire()) {
+					return false;
+				}
+				boolean added = false;
+				Socket socket = null;
+				try {
+					// this happens outside of the lock so other threads can acquire and release in the meantime
+					socket = openSocket(secure);
+					synchronized(this) {
+						if (!closed) {
+							PooledConnection connection = new PooledConnection(socket, this);
+							allConnections.add(connection);
+							connections.put(socket, connection);
+							freeConnections.push(connection);
+							amountOfFreeSockets++;
+							added = true;
 						}
-						if (socket == null) {
-							throw new IOException("Could not set up connection to " + host + ":" + port);
+					}
+					return added;
+				}
+				finally {
+					if (!added) {
+						if (socket != null) {
+							ConnectionUtils.closeQuietly(socket);
 						}
-						synchronized(this) {
-							for (int j = 0; j < totalAmount; j++) {
-								if (sockets[j] == null) {
-									sockets[j] = socket;
-									amountOfUsedSockets++;
-									socketsInUse[j] = true;
-									break;
-								}
-							}
+						if (globalSlots != null) {
+							globalSlots.release();
 						}
-						return socket;
 					}
 				}
 			}
-			return null;
+			finally {
+				slots.release();
+			}
+		}
+		
+		private Socket openSocket(boolean secure) throws IOException {
+			long started = System.nanoTime();
+			Socket socket;
+			try {
+				socket = newSocket(secure);
+			}
+			catch (IOException e) {
+				connectFailures.incrementAndGet();
+				globalMetrics.connectFailures.incrementAndGet();
+				if (listener != null) {
+					listener.connectFailed(host, port, e);
+				}
+				throw e;
+			}
+			connects.incrementAndGet();
+			globalMetrics.connects.incrementAndGet();
+			if (listener != null) {
+				listener.connected(host, port, (System.nanoTime() - started) / 1000);
+			}
+			return socket;
+		}
+		
+		private Socket newSocket(boolean secure) throws IOException {
+			Socket socket = null;
+			if (useProxy(host, port)) {
+				socket = getProxy().tunnel(host, port, connectionTimeout, socketTimeout, secure);
+			}
+			else {
+				socket = connector.connect(host, port, connectionTimeout);
+				socket.setSoTimeout(socketTimeout);
+			}
+			if (socket == null) {
+				throw new IOException("Could not set up connection to " + host + ":" + port);
+			}
+			// wrap a SSLSocket around the regular socket
+			if (secure) {
+				try {
+					socket = handshake(socket);
+				}
+				catch (IOException e) {
+					ConnectionUtils.closeQuietly(socket);
+					throw e;
+				}
+			}
+			return socket;
+		}
+		
+		/**
+		 * The secure socket is created for the target host and port (not the address we are connected to, which might be a proxy)
+		 * This is what the JSSE client session cache is keyed on, so reconnects to the same target can resume the session with an abbreviated handshake
+		 */
+		private Socket handshake(Socket socket) throws IOException {
+			SSLSocket secureSocket = (SSLSocket) secureContext.getSocketFactory().createSocket(socket, host, port, true);
+			ConnectionUtils.setServerName(secureSocket, host);
+			secureSocket.setSoTimeout(socketTimeout);
+			long started = System.currentTimeMillis();
+			long startedNanos = System.nanoTime();
+			secureSocket.startHandshake();
+			long duration = (System.nanoTime() - startedNanos) / 1000;
+			// a resumed session keeps the creation time of the original session
+			boolean resumed = secureSocket.getSession().getCreationTime() < started;
+			handshakes.incrementAndGet();
+			handshakeTime.addAndGet(duration);
+			globalMetrics.handshakes.incrementAndGet();
+			globalMetrics.handshakeTime.addAndGet(duration);
+			if (resumed) {
+				resumedHandshakes.incrementAndGet();
+				globalMetrics.resumedHandshakes.incrementAndGet();
+			}
+			if (listener != null) {
+				listener.handshaked(host, port, duration, resumed);
+			}
+			return secureSocket;
+		}
+		
+		public PooledConnection getLeastRecentlyUsed() {
+			synchronized(this) {
+				return freeConnections.peekLast();
+			}
+		}
+		
+		/**
+		 * Drops an in-use connection without giving back its slot
+		 */
+		private void discard(PooledConnection connection) {
+			synchronized(this) {
+				allConnections.remove(connection);
+				forget(connection);
+				connection.inUse = false;
+				amountOfUsedSockets--;
+			}
+			evicted();
+			ConnectionUtils.closeQuietly(connection.socket);
+		}
+		
+		/**
+		 * Closes an unused connection, returns false if it is in use (or already gone)
+		 */
+		public boolean evict(PooledConnection connection) {
+			synchronized(this) {
+				if (connection.inUse || !freeConnections.remove(connection)) {
+					return false;
+				}
+				allConnections.remove(connection);
+				forget(connection);
+				amountOfFreeSockets--;
+			}
+			logger.debug("Evicting connection {} to {}", connection.socket, key);
+			evicted();
+			ConnectionUtils.closeQuietly(connection.socket);
+			return true;
+		}
+		
+		private void evicted() {
+			evictions.incrementAndGet();
+			globalMetrics.evictions.incrementAndGet();
+			if (listener != null) {
+				listener.evicted(host, port);
+			}
+		}
+		
+		@Override
+		public int getLeased() {
+			return amountOfUsedSockets;
+		}
+
+		@Override
+		public int getIdle() {
+			return amountOfFreeSockets;
+		}
+
+		@Override
+		public int getPending() {
+			return slots.getQueueLength();
+		}
+
+		@Override
+		public long getConnects() {
+			return connects.get();
+		}
+
+		@Override
+		public long getConnectFailures() {
+			return connectFailures.get();
+		}
+
+		@Override
+		public long getEvictions() {
+			return evictions.get();
+		}
+
+		@Override
+		public long getAcquires() {
+			return acquires.get();
+		}
+
+		@Override
+		public long getAcquireWaitTime() {
+			return acquireWaitTime.get();
+		}
+		
+		@Override
+		public long getHandshakes() {
+			return handshakes.get();
+		}
+
+		@Override
+		public long getResumedHandshakes() {
+			return resumedHandshakes.get();
+		}
+
+		@Override
+		public long getHandshakeTime() {
+			return handshakeTime.get();
+		}
+		
+		/**
+		 * Evicts all the expired unused connections and returns the unused connections that remain
+		 */
+		public List<PooledConnection> evictExpired(long now) {
+			List<PooledConnection> expired = new ArrayList<PooledConnection>();
+			List<PooledConnection> remaining = new ArrayList<PooledConnection>();
+			synchronized(this) {
+				for (PooledConnection connection : freeConnections) {
+					if (isExpired(connection, now)) {
+						expired.add(connection);
+					}
+					else {
+						remaining.add(connection);
+					}
+				}
+			}
+			for (PooledConnection connection : expired) {
+				evict(connection);
+			}
+			return remaining;
 		}
 		
 		@Override
@@ -306,27 +1154,29 @@ public class PooledConnectionHandler implements ConnectionHandler {
 			return object instanceof SocketHandler && ((SocketHandler) object).key.equals(key);
 		}
 
+		/**
+		 * Closes the idle connections, connections that are in use are left to their owners and closed when they are released
+		 */
 		@Override
 		public void close() throws IOException {
-			IOException exception = null;
-			for (Socket socket : sockets) {
-				if (socket != null) {
-					try {
-						socket.close();
-					}
-					catch (IOException e) {
-						exception = e;
-					}
+			List<PooledConnection> toClose;
+			synchronized(this) {
+				closed = true;
+				toClose = new ArrayList<PooledConnection>(freeConnections);
+				for (PooledConnection connection : freeConnections) {
+					allConnections.remove(connection);
+					forget(connection);
 				}
+				freeConnections.clear();
+				amountOfFreeSockets = 0;
 			}
-			for (Socket socket : sockets) {
-				if (socket != null) {
-					try {
-						socket.close();
-					}
-					catch (IOException e) {
-						exception = e;
-					}
+			IOException exception = null;
+			for (PooledConnection connection : toClose) {
+				try {
+					connection.socket.close();
+				}
+				catch (IOException e) {
+					exception = e;
 				}
 			}
 			if (exception != null) {
@@ -334,4 +1184,80 @@ public class PooledConnectionHandler implements ConnectionHandler {
 			}
 		}
 	}
+	
+	/**
+	 * The counters are kept separately so they survive the removal of a route, the gauges are summed over the current routes
+	 */
+	private class GlobalMetrics implements ConnectionPoolMetrics {
+		
+		private AtomicLong connects = new AtomicLong(), connectFailures = new AtomicLong(), evictions = new AtomicLong(), acquires = new AtomicLong(), acquireWaitTime = new AtomicLong();
+		private AtomicLong handshakes = new AtomicLong(), resumedHandshakes = new AtomicLong(), handshakeTime = new AtomicLong();
+		
+		@Override
+		public int getLeased() {
+			int leased = 0;
+			for (SocketHandler handler : socketHandlers.values()) {
+				leased += handler.getLeased();
+			}
+			return leased;
+		}
+
+		@Override
+		public int getIdle() {
+			int idle = 0;
+			for (SocketHandler handler : socketHandlers.values()) {
+				idle += handler.getIdle();
+			}
+			return idle;
+		}
+
+		@Override
+		public int getPending() {
+			int pending = globalSlots == null ? 0 : globalSlots.getQueueLength();
+			for (SocketHandler handler : socketHandlers.values()) {
+				pending += handler.getPending();
+			}
+			return pending;
+		}
+
+		@Override
+		public long getConnects() {
+			return connects.get();
+		}
+
+		@Override
+		public long getConnectFailures() {
+			return connectFailures.get();
+		}
+
+		@Override
+		public long getEvictions() {
+			return evictions.get();
+		}
+
+		@Override
+		public long getAcquires() {
+			return acquires.get();
+		}
+
+		@Override
+		public long getAcquireWaitTime() {
+			return acquireWaitTime.get();
+		}
+		
+		@Override
+		public long getHandshakes() {
+			return handshakes.get();
+		}
+
+		@Override
+		public long getResumedHandshakes() {
+			return resumedHandshakes.get();
+		}
+
+		@Override
+		public long getHandshakeTime() {
+			return handshakeTime.get();
+		}
+	}
 }
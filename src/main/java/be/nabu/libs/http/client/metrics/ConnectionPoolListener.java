@@ -0,0 +1,32 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.metrics;
+
+import java.io.IOException;
+
+/**
+ * Is notified of the events in a connection pool, implementations should be fast and thread safe as they are called inline
+ * All durations are in microseconds
+ */
+public interface ConnectionPoolListener {
+	public void acquired(String host, int port, long waitTime);
+	public void connected(String host, int port, long connectTime);
+	public void connectFailed(String host, int port, IOException exception);
+	public void handshaked(String host, int port, long handshakeTime, boolean resumed);
+	public void evicted(String host, int port);
+}
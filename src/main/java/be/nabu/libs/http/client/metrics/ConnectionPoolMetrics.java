@@ -0,0 +1,66 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.metrics;
+
+import javax.management.MXBean;
+
+/**
+ * The state of a connection pool, either for a single route (host:port) or for all routes combined
+ * All durations are in microseconds
+ */
+@MXBean
+public interface ConnectionPoolMetrics {
+	/**
+	 * The amount of connections that are currently handed out
+	 */
+	public int getLeased();
+	/**
+	 * The amount of open connections that are currently not in use
+	 */
+	public int getIdle();
+	/**
+	 * The amount of threads waiting for a connection
+	 */
+	public int getPending();
+	/**
+	 * The amount of new connections that were set up
+	 */
+	public long getConnects();
+	public long getConnectFailures();
+	/**
+	 * The amount of connections that were closed by the pool because they were idle, expired, stale or needed to make room
+	 */
+	public long getEvictions();
+	/**
+	 * The amount of times a connection was handed out
+	 */
+	public long getAcquires();
+	/**
+	 * The total time spent waiting to acquire a connection
+	 */
+	public long getAcquireWaitTime();
+	/**
+	 * The amount of TLS handshakes for new connections and how many of those resumed a cached session
+	 */
+	public long getHandshakes();
+	public long getResumedHandshakes();
+	/**
+	 * The total time spent in TLS handshakes
+	 */
+	public long getHandshakeTime();
+}
@@ -0,0 +1,59 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers metrics in the platform MBean server as "be.nabu.libs.http.client:type=<type>,name=<name>"
+ */
+public class JMXExporter {
+	
+	public static ObjectName register(String type, String name, Object metrics) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = getObjectName(type, name);
+		try {
+			server.registerMBean(metrics, objectName);
+		}
+		// replace a previous registration (e.g. a client that was recreated)
+		catch (InstanceAlreadyExistsException e) {
+			server.unregisterMBean(objectName);
+			server.registerMBean(metrics, objectName);
+		}
+		return objectName;
+	}
+	
+	public static void unregister(String type, String name) throws JMException {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName(type, name));
+		}
+		catch (InstanceNotFoundException e) {
+			// already gone
+		}
+	}
+	
+	private static ObjectName getObjectName(String type, String name) throws JMException {
+		return new ObjectName("be.nabu.libs.http.client:type=" + type + ",name=" + ObjectName.quote(name));
+	}
+}
@@ -0,0 +1,64 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram with exponential buckets: bucket i counts the values up to 2^i
+ * This keeps the memory fixed while still giving a decent idea of the tail latencies
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 40;
+	
+	private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	
+	public void record(long value) {
+		int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+		buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+	}
+	
+	public long getPercentile(double percentile) {
+		long [] counts = getBuckets();
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long threshold = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= threshold && seen > 0) {
+				return 1L << i;
+			}
+		}
+		return 1L << (BUCKETS - 1);
+	}
+	
+	public long [] getBuckets() {
+		long [] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,30 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.metrics;
+
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+
+/**
+ * Is notified of every request sent by the executor, implementations should be fast and thread safe as they are called inline
+ * The latency is in microseconds, the byte counts are what was actually sent and received on the socket
+ */
+public interface RequestListener {
+	public void executed(HTTPRequest request, HTTPResponse response, long latency, long bytesSent, long bytesReceived);
+	public void failed(HTTPRequest request, Exception exception, long latency, long bytesSent, long bytesReceived);
+}
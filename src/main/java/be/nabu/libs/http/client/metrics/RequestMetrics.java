@@ -0,0 +1,39 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.metrics;
+
+import javax.management.MXBean;
+
+/**
+ * The requests that were executed, the latency (in microseconds) is measured from the moment the request is sent until the response is parsed
+ */
+@MXBean
+public interface RequestMetrics {
+	public long getRequests();
+	public long getFailures();
+	public long getBytesSent();
+	public long getBytesReceived();
+	/**
+	 * The upper bound of the latency bucket that contains the given percentile (e.g. 99.9)
+	 */
+	public long getLatencyPercentile(double percentile);
+	/**
+	 * The amount of requests per latency bucket, bucket i contains the requests that took up to 2^i microseconds
+	 */
+	public long [] getLatencyHistogram();
+}
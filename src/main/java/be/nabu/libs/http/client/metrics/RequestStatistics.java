@@ -0,0 +1,75 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RequestStatistics implements RequestMetrics {
+
+	private AtomicLong requests = new AtomicLong(), failures = new AtomicLong(), bytesSent = new AtomicLong(), bytesReceived = new AtomicLong();
+	private LatencyHistogram latency = new LatencyHistogram();
+	
+	public void executed(long latency, long bytesSent, long bytesReceived) {
+		requests.incrementAndGet();
+		this.latency.record(latency);
+		this.bytesSent.addAndGet(bytesSent);
+		this.bytesReceived.addAndGet(bytesReceived);
+	}
+	
+	public void addBytes(long bytesSent, long bytesReceived) {
+		this.bytesSent.addAndGet(bytesSent);
+		this.bytesReceived.addAndGet(bytesReceived);
+	}
+	
+	public void failed(long bytesSent, long bytesReceived) {
+		requests.incrementAndGet();
+		failures.incrementAndGet();
+		this.bytesSent.addAndGet(bytesSent);
+		this.bytesReceived.addAndGet(bytesReceived);
+	}
+	
+	@Override
+	public long getRequests() {
+		return requests.get();
+	}
+
+	@Override
+	public long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	@Override
+	public long getLatencyPercentile(double percentile) {
+		return latency.getPercentile(percentile);
+	}
+
+	@Override
+	public long [] getLatencyHistogram() {
+		return latency.getBuckets();
+	}
+}
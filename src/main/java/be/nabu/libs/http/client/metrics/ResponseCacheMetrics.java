@@ -0,0 +1,36 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.metrics;
+
+import javax.management.MXBean;
+
+/**
+ * Hits are served from the cache without contacting the server, stale hits are served while they are revalidated in the background (stale-while-revalidate)
+ * A revalidation is a conditional request for a stored response, if the server confirms it has not been modified it is also counted as not modified
+ */
+@MXBean
+public interface ResponseCacheMetrics {
+	public long getHits();
+	public long getStaleHits();
+	public long getMisses();
+	public long getRevalidations();
+	public long getNotModified();
+	public long getStores();
+	public int getEntries();
+	public long getSize();
+}
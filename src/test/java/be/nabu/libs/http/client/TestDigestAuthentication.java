@@ -0,0 +1,117 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.authentication.api.principals.BasicPrincipal;
+import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+
+/**
+ * The digest values are the examples of RFC 7616, section 3.9.1
+ */
+public class TestDigestAuthentication extends TestCase {
+
+	private static final String CHALLENGE = "realm=\"http-auth@example.org\", qop=\"auth, auth-int\", nonce=\"7ypf/xlj9XXwfDPEoM4URrv/xwf94BcCAzFZH4GiTo0v\", opaque=\"FQhe/qaU925kfnzjCev0ciny7QMkPqMAFRtzCUYo5tdS\"";
+
+	public void testMD5() {
+		String response = authenticate("Digest " + CHALLENGE + ", algorithm=MD5");
+		assertTrue(response, response.contains("response=\"8ca523f5e9506fed4657c9700eebdbec\""));
+		assertTrue(response, response.contains("nc=00000001"));
+		assertTrue(response, response.contains("opaque=\"FQhe/qaU925kfnzjCev0ciny7QMkPqMAFRtzCUYo5tdS\""));
+	}
+
+	public void testSHA256() {
+		String response = authenticate("Digest " + CHALLENGE + ", algorithm=SHA-256");
+		assertTrue(response, response.contains("response=\"753927fa0e85d155564e2e272a28d1802ca10daf4496794697cf8db5856cb6c1\""));
+	}
+
+	public void testNonceCount() {
+		DigestAuthentication authentication = newAuthentication();
+		authenticate(authentication, "Digest " + CHALLENGE);
+		String response = authenticate(authentication, "Digest " + CHALLENGE);
+		assertTrue(response, response.contains("nc=00000002"));
+	}
+
+	public void testQuotedComma() {
+		List<AuthenticationChallenge> challenges = AuthenticationChallenge.parse("Digest realm=\"r\", nonce=\"a, b\", algorithm=SHA-256, qop=\"auth,auth-int\"");
+		assertEquals(1, challenges.size());
+		assertEquals("a, b", challenges.get(0).getParameter("nonce"));
+		assertEquals("auth,auth-int", challenges.get(0).getParameter("qop"));
+		assertEquals("SHA-256", challenges.get(0).getParameter("algorithm"));
+	}
+
+	public void testMultipleChallenges() {
+		List<AuthenticationChallenge> challenges = AuthenticationChallenge.parse("Newauth realm=\"apps\", type=1, title=\"Login to \\\"apps\\\"\", Basic realm=\"simple\"");
+		assertEquals(2, challenges.size());
+		assertEquals("Newauth", challenges.get(0).getScheme());
+		assertEquals("1", challenges.get(0).getParameter("type"));
+		assertEquals("Login to \"apps\"", challenges.get(0).getParameter("title"));
+		assertEquals("Basic", challenges.get(1).getScheme());
+		assertEquals("simple", challenges.get(1).getParameter("realm"));
+
+		challenges = AuthenticationChallenge.parse("Digest realm=\"r\", nonce=\"a, b\", algorithm=SHA-256, Digest realm=\"r\", nonce=\"c\", algorithm=MD5");
+		assertEquals(2, challenges.size());
+		assertEquals("SHA-256", challenges.get(0).getParameter("algorithm"));
+		assertEquals("c", challenges.get(1).getParameter("nonce"));
+		assertEquals("MD5", challenges.get(1).getParameter("algorithm"));
+
+		challenges = AuthenticationChallenge.parse("NTLM, Negotiate");
+		assertEquals(2, challenges.size());
+		assertEquals("NTLM", challenges.get(0).getScheme());
+		assertEquals("Negotiate", challenges.get(1).getScheme());
+	}
+
+	public void testToken68() {
+		List<AuthenticationChallenge> challenges = AuthenticationChallenge.parse("NTLM TlRMTVNTUAACAAAA==");
+		assertEquals(1, challenges.size());
+		assertEquals("TlRMTVNTUAACAAAA==", challenges.get(0).getToken());
+	}
+
+	private static String authenticate(String challenge) {
+		return authenticate(newAuthentication(), challenge);
+	}
+
+	private static String authenticate(DigestAuthentication authentication, String challenge) {
+		BasicPrincipal principal = new BasicPrincipal() {
+			@Override
+			public String getName() {
+				return "Mufasa";
+			}
+			@Override
+			public String getPassword() {
+				return "Circle of Life";
+			}
+		};
+		String response = authentication.authenticate(principal, challenge, new DefaultHTTPRequest("GET", "/dir/index.html", new PlainMimeEmptyPart(null)));
+		assertNotNull(response);
+		return response;
+	}
+
+	private static DigestAuthentication newAuthentication() {
+		// the client nonce of the examples
+		return new DigestAuthentication() {
+			@Override
+			String newClientNonce() {
+				return "f2/wE4q74E6zIJEtWaHKaf5wv/H5QzzpXusqGemxURZJ";
+			}
+		};
+	}
+}
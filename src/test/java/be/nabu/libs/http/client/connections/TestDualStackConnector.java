@@ -0,0 +1,93 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.http.client.connections;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestDualStackConnector extends TestCase {
+
+	public void testInterleaving() throws UnknownHostException {
+		InetAddress v6a = address("2001:db8::1"), v6b = address("2001:db8::2"), v4a = address("192.0.2.1"), v4b = address("192.0.2.2"), v4c = address("192.0.2.3");
+		// the family of the first address goes first
+		assertEquals(Arrays.asList(v6a, v4a, v6b, v4b, v4c), DualStackConnector.sort(new InetAddress[] { v6a, v6b, v4a, v4b, v4c }));
+		assertEquals(Arrays.asList(v4a, v6a, v4b, v6b, v4c), DualStackConnector.sort(new InetAddress[] { v4a, v4b, v4c, v6a, v6b }));
+		// the order within a family is kept
+		assertEquals(Arrays.asList(v4c, v4a, v4b), DualStackConnector.sort(new InetAddress[] { v4c, v4a, v4b }));
+	}
+
+	public void testFallback() throws IOException {
+		ServerSocket server = new ServerSocket();
+		try {
+			server.bind(new InetSocketAddress(address("127.0.0.1"), 0));
+			// nothing listens on the other loopback addresses, they are refused and the next address is tried without waiting for the attempt delay
+			final List<InetAddress> addresses = Arrays.asList(address("127.0.0.2"), address("127.0.0.3"), address("::1"), address("127.0.0.1"));
+			DualStackConnector connector = new DualStackConnector(new HostResolver() {
+				@Override
+				public InetAddress[] resolve(String host) {
+					return addresses.toArray(new InetAddress[addresses.size()]);
+				}
+			}).setAttemptDelay(30000);
+			long started = System.currentTimeMillis();
+			Socket socket = connector.connect("example.org", server.getLocalPort(), 10000);
+			try {
+				assertEquals(address("127.0.0.1"), socket.getInetAddress());
+				assertTrue(System.currentTimeMillis() - started < 10000);
+			}
+			finally {
+				socket.close();
+			}
+		}
+		finally {
+			server.close();
+		}
+	}
+
+	public void testAllRefused() throws IOException {
+		ServerSocket server = new ServerSocket();
+		server.bind(new InetSocketAddress(address("127.0.0.1"), 0));
+		int port = server.getLocalPort();
+		server.close();
+		DualStackConnector connector = new DualStackConnector(new HostResolver() {
+			@Override
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				return new InetAddress[] { address("127.0.0.1"), address("::1") };
+			}
+		}).setAttemptDelay(30000);
+		try {
+			connector.connect("example.org", port, 10000).close();
+			fail("Nothing is listening on port " + port);
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static InetAddress address(String literal) throws UnknownHostException {
+		// a literal is never looked up
+		return InetAddress.getByName(literal);
+	}
+}